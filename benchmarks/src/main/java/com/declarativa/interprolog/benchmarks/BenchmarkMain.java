@@ -0,0 +1,54 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.benchmarks;
+import java.util.ArrayList;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs the benchmarks, writing JSON results. Arguments: [results file [JMH include regexp]].
+The end to end benchmarks run for the Prologs whose bin directory is defined as a -D property or environment variable,
+and are skipped if none is */
+public class BenchmarkMain{
+	static final String[] PROLOGS = {"XSB","SWI"};
+
+	/** Similar to AbstractPrologEngine.findInterPrologProperty, minus interprolog.defs */
+	static String binDirectory(String prolog){
+		String P = prolog+"_BIN_DIRECTORY";
+		String R = System.getProperty(P);
+		if (R==null) R = System.getenv(P);
+		return R;
+	}
+
+	public static void main(String[] args) throws RunnerException{
+		String results = (args.length>0 ? args[0] : "jmh-results.json");
+		ChainedOptionsBuilder options = new OptionsBuilder()
+			.include(args.length>1 ? args[1] : "com.declarativa.interprolog.benchmarks.*")
+			.resultFormat(ResultFormatType.JSON)
+			.result(results);
+		ArrayList<String> prologs = new ArrayList<String>();
+		ArrayList<String> properties = new ArrayList<String>();
+		for (String prolog:PROLOGS){
+			String dir = binDirectory(prolog);
+			if (dir==null) continue;
+			prologs.add(prolog);
+			properties.add("-D"+prolog+"_BIN_DIRECTORY="+dir);
+		}
+		// forked VMs do not inherit our properties
+		if (!properties.isEmpty()) options.jvmArgsAppend(properties.toArray(new String[0]));
+		if (prologs.isEmpty()) {
+			System.err.println("No XSB_BIN_DIRECTORY nor SWI_BIN_DIRECTORY defined, skipping end to end benchmarks");
+			options.exclude(EndToEndBenchmarks.class.getSimpleName());
+		} else options.param("prolog",prologs.toArray(new String[0]));
+		new Runner(options.build()).run();
+		System.out.println("Results in "+results);
+	}
+}
@@ -0,0 +1,139 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.benchmarks;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.declarativa.interprolog.TermModel;
+import com.declarativa.interprolog.util.GoalFromJava;
+import com.declarativa.interprolog.util.IPClassObject;
+import com.declarativa.interprolog.util.InvisibleObject;
+import com.declarativa.interprolog.util.MessageFromProlog;
+import com.declarativa.interprolog.util.ObjectRegistry;
+import com.declarativa.interprolog.util.PrologOutputObjectStream;
+import com.declarativa.interprolog.util.Recognizer;
+import com.declarativa.interprolog.util.ResultFromJava;
+
+/** The Java side of the bridge, no Prolog needed: encoding goals for Prolog, the object registry,
+javaMessage dispatch and the recognizers scanning Prolog's output */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class BridgeBenchmarks{
+	static final int REGISTERED = 1000;
+
+	DetachedEngine engine;
+	GoalFromJava goal;
+	ByteArrayOutputStream bytes;
+	Object[] objects;
+	ObjectRegistry registry;
+	MessageFromProlog instanceMessage, staticMessage, constructorMessage;
+	Recognizer recognizer;
+	byte[] output;
+	Charset charset = Charset.forName("UTF-8");
+
+	@Setup(Level.Trial)
+	public void setup(){
+		engine = new DetachedEngine();
+		TermModel list = TermModel.makeList(new TermModel[]{new TermModel("a"),new TermModel("b"),new TermModel(new Integer(3)),new TermModel(new Double(4.5))});
+		goal = new GoalFromJava(1,"length(L,N), ipObjectSpec('java.lang.Integer',I,[N],_)","GoalFromJava",new Object[]{list,"a string",new Integer(42)},"[I]");
+		bytes = new ByteArrayOutputStream(4096);
+		objects = new Object[REGISTERED];
+		for (int i=0;i<objects.length;i++)
+			objects[i] = new StringBuffer("object "+i);
+		registry = new ObjectRegistry();
+		for (Object x:objects)
+			registry.registerJavaObject(x);
+		instanceMessage = message(new InvisibleObject(engine.registerJavaObject(new StringBuffer("hello"))),"indexOf",new Object[]{"l"});
+		staticMessage = message(new IPClassObject("java.lang.Integer"),"valueOf",new Object[]{"42"});
+		constructorMessage = message(new IPClassObject("java.lang.String"),"String",new Object[]{"hello"});
+		recognizer = new Recognizer("| ?- ");
+		StringBuilder sb = new StringBuilder();
+		while (sb.length()<8000)
+			sb.append("yes\nsome output | not a prompt ?- just text\n");
+		output = sb.toString().getBytes(charset);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		engine.deleteTempFiles();
+	}
+
+	static MessageFromProlog message(Object target,String methodName,Object[] arguments){
+		MessageFromProlog m = new MessageFromProlog();
+		m.target = target;
+		m.methodName = methodName;
+		m.arguments = arguments;
+		m.returnArguments = false;
+		return m;
+	}
+
+	@Benchmark
+	public int encodeGoal() throws IOException{
+		bytes.reset();
+		PrologOutputObjectStream poos = new PrologOutputObjectStream(bytes);
+		poos.writeObject(goal);
+		poos.flush();
+		return bytes.size();
+	}
+
+	@Benchmark
+	public int registerObjects(){
+		ObjectRegistry R = new ObjectRegistry();
+		for (Object x:objects)
+			R.registerJavaObject(x);
+		return R.size();
+	}
+
+	@Benchmark
+	public int findRegisteredObjects(){
+		int sum = 0;
+		for (Object x:objects)
+			sum += registry.registerJavaObject(x);
+		return sum;
+	}
+
+	@Benchmark
+	public ResultFromJava callbackInstanceMethod(){
+		return engine.doCallback(instanceMessage);
+	}
+
+	@Benchmark
+	public ResultFromJava callbackStaticMethod(){
+		return engine.doCallback(staticMessage);
+	}
+
+	@Benchmark
+	public ResultFromJava callbackConstructor(){
+		return engine.doCallback(constructorMessage);
+	}
+
+	@Benchmark
+	public Recognizer analyseBytes(){
+		recognizer.analyseBytes(output,output.length,"stdout",charset);
+		return recognizer;
+	}
+}
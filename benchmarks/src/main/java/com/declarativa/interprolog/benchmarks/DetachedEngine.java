@@ -0,0 +1,25 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.benchmarks;
+import com.declarativa.interprolog.AbstractPrologEngine;
+import com.declarativa.interprolog.PrologImplementationPeer;
+
+/** An engine with no Prolog behind it, good only for the Java side of javaMessage: doCallback and the object registry */
+public class DetachedEngine extends AbstractPrologEngine{
+	public DetachedEngine(){
+		super("detached",false,true);
+	}
+	protected PrologImplementationPeer makeImplementationPeer(){
+		return null;
+	}
+	protected void doInterrupt(boolean wait,boolean killGoals,boolean abortEntirely){
+	}
+	public boolean realCommand(String s){
+		throw new UnsupportedOperationException("DetachedEngine has no Prolog");
+	}
+}
@@ -0,0 +1,88 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.benchmarks;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.declarativa.interprolog.AbstractPrologEngine;
+import com.declarativa.interprolog.SWISubprocessEngine;
+import com.declarativa.interprolog.TermModel;
+import com.declarativa.interprolog.XSBSubprocessEngine;
+
+/** Round trips to a real Prolog subprocess. BenchmarkMain runs these only for the Prologs whose
+XSB_BIN_DIRECTORY or SWI_BIN_DIRECTORY is defined */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class EndToEndBenchmarks{
+	/** XSB or SWI */
+	@Param({"XSB","SWI"})
+	public String prolog;
+
+	AbstractPrologEngine engine;
+	int thisID;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		if (prolog.equals("XSB")) engine = new XSBSubprocessEngine();
+		else if (prolog.equals("SWI")) engine = new SWISubprocessEngine();
+		else throw new IllegalArgumentException("Unknown Prolog:"+prolog);
+		engine.waitUntilAvailable();
+		thisID = engine.registerJavaObject(this);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		engine.shutdown();
+	}
+
+	public int luckyNumber(){
+		return 13;
+	}
+
+	@Benchmark
+	public boolean emptyGoal(){
+		return engine.deterministicGoal("true");
+	}
+
+	@Benchmark
+	public Object[] integerResult(){
+		return engine.deterministicGoal("ipObjectSpec('java.lang.Integer',I,[42],_)","[I]");
+	}
+
+	@Benchmark
+	public boolean callback(){
+		return engine.deterministicGoal("javaMessage("+thisID+",_,luckyNumber)");
+	}
+
+	@Benchmark
+	public Object termModelList(){
+		return (TermModel)engine.deterministicGoal("length(L,1000), buildTermModel(L,TM)","[TM]")[0];
+	}
+
+	@Benchmark
+	public Object flatTermList(){
+		return (TermModel)engine.deterministicGoal("length(L,1000), buildInitiallyFlatTermModel(L,TM)","[TM]")[0];
+	}
+}
@@ -0,0 +1,134 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.benchmarks;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.declarativa.interprolog.InitiallyFlatTermModel;
+import com.declarativa.interprolog.TermModel;
+import com.declarativa.interprolog.util.MyStreamTokenizer;
+import com.declarativa.interprolog.util.TermLexer;
+
+/** TermModel construction and printing, InitiallyFlatTermModel inflate and deflate, and tokenizing of canonical term text, with TermLexer and (as a baseline) the MyStreamTokenizer it replaced */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class TermBenchmarks{
+	/** Number of list elements in the test term */
+	@Param({"10","1000"})
+	public int size;
+
+	String canonical;
+	TermModel term;
+
+	/** A list of size elements like f(I,'atom I',[a,b,c],g(VarI,2.5,VarI)) */
+	static String canonicalList(int size){
+		StringBuilder sb = new StringBuilder("[");
+		for (int i=0;i<size;i++){
+			if (i>0) sb.append(',');
+			sb.append("f("+i+",'atom "+i+"',['a','b','c'],g(_"+i+",2.5,_"+i+"))");
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+
+	@Setup(Level.Trial)
+	public void setup(){
+		canonical = canonicalList(size);
+		term = buildTerm();
+	}
+
+	/** A freshly inflated term for each deflate */
+	@State(Scope.Thread)
+	public static class Inflated{
+		InitiallyFlatTermModel term;
+		@Setup(Level.Invocation)
+		public void inflate(TermBenchmarks benchmarks){
+			term = InitiallyFlatTermModel.testFromString(benchmarks.canonical);
+		}
+	}
+
+	@Benchmark
+	public TermModel buildTerm(){
+		TermModel list = new TermModel("[]",true);
+		TermModel abc = new TermModel(".",new TermModel[]{new TermModel("a"),
+			new TermModel(".",new TermModel[]{new TermModel("b"),
+			new TermModel(".",new TermModel[]{new TermModel("c"),new TermModel("[]",true)},true)},true)},true);
+		for (int i=size-1;i>=0;i--){
+			TermModel g = new TermModel("g",new TermModel[]{new TermModel(new Integer(i)),new TermModel(new Double(2.5))});
+			TermModel f = new TermModel("f",new TermModel[]{new TermModel(new Integer(i)),new TermModel("atom "+i),abc,g});
+			list = new TermModel(".",new TermModel[]{f,list},true);
+		}
+		return list;
+	}
+
+	@Benchmark
+	public String termToString(){
+		return term.toString(true);
+	}
+
+	@Benchmark
+	public TermModel inflateFlatTerm(){
+		return InitiallyFlatTermModel.testFromString(canonical);
+	}
+
+	@Benchmark
+	public String deflateFlatTerm(Inflated inflated){
+		inflated.term.deflate();
+		return inflated.term.getCanonicalTerm();
+	}
+
+	@Benchmark
+	public int tokenize() throws IOException{
+		TermLexer lexer = new TermLexer(canonical,false);
+		int n = 0;
+		while (lexer.nextToken()!=TermLexer.TT_EOF) n++;
+		return n;
+	}
+
+	/** Baseline for tokenize(): MyStreamTokenizer, set up and used for numbers as InitiallyFlatTermModel's parser did before TermLexer */
+	@SuppressWarnings("deprecation")
+	@Benchmark
+	public int tokenizeMyStreamTokenizer() throws IOException{
+		MyStreamTokenizer ST = new MyStreamTokenizer(new StringReader(canonical));
+		ST.wordChars(95,95); ST.wordChars(36,36); ST.wordChars(42,43); ST.wordChars(45,45); 
+		ST.wordChars(47,47); ST.wordChars(58,58); ST.wordChars(61,61); 
+		int n = 0;
+		int NT = ST.nextToken();
+		while (NT!=MyStreamTokenizer.TT_EOF) {
+			n++;
+			if (NT==MyStreamTokenizer.TT_NUMBER){
+				Number value = (ST.containsDot() ? (Number)new Double(ST.nval) : (Number)new Integer((int)ST.nval));
+				NT = ST.nextToken();
+				if (NT==MyStreamTokenizer.TT_WORD && ST.sval.startsWith("E")){
+					value = Double.valueOf(value+ST.sval);
+					NT = ST.nextToken();
+				}
+				if (value.intValue()<0) n++;
+			} else NT = ST.nextToken();
+		}
+		return n;
+	}
+}
@@ -16,7 +16,6 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -24,12 +23,25 @@ import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.jar.JarFile;
 
 import com.declarativa.interprolog.util.BasicTypeWrapper;
+import com.declarativa.interprolog.util.DispatchCache;
 import com.declarativa.interprolog.util.GoalFromJava;
 import com.declarativa.interprolog.util.GoalToExecute;
 import com.declarativa.interprolog.util.IPAbortedException;
@@ -45,6 +57,7 @@ import com.declarativa.interprolog.util.ObjectRegistry;
 import com.declarativa.interprolog.util.OutOfBandTermResource;
 import com.declarativa.interprolog.util.ResultFromJava;
 import com.declarativa.interprolog.util.ResultFromProlog;
+import com.declarativa.interprolog.util.UnavailableResultException;
 import com.declarativa.interprolog.util.VariableNode;
 
 /** The heart of InterProlog; a PrologEngine represents a Prolog machine instance.  
@@ -71,9 +84,11 @@ public abstract class AbstractPrologEngine implements PrologEngine{
     
     /** Table of object references that can be referred from Prolog without being serialized */
     protected ObjectRegistry knownObjects;
+    /** Methods and constructors already found for javaMessage */
+    protected final DispatchCache dispatchCache = new DispatchCache();
     protected boolean shutingDown = false;
     /** Prolog is handling an interrupt */
-    protected boolean interrupting = false;
+    protected volatile boolean interrupting = false;
     /** Determines whether deterministicGoal machinery is in place... */
     public boolean interPrologFileLoaded = false;
     protected boolean debug=false;
@@ -82,23 +97,34 @@ public abstract class AbstractPrologEngine implements PrologEngine{
     protected boolean loadFromJar;
     /** A (first) top goal is active; so  deterministicGoal calls will be handled during the 
     execution of javaMessage. */
-    protected boolean topGoalHasStarted=false;
+    protected volatile boolean topGoalHasStarted=false;
     protected boolean detectsPauses = true;
     /** Undefined if !detectsPauses. Otherwise, true when the logic engine is idle (awaiting a command) in a break */
-    protected boolean paused = false;
+    protected volatile boolean paused = false;
     /** Currently exclusive with detectsPauses */
 	protected boolean usingTimedCall;
     /** goal counter */
     protected int goalTimestamp;
     /** Whether each javaMessage is executed in a new (separate) thread. False by default: callbacks try to run in the Java thread of the last pending goal call.*/
     protected boolean threadedCallbacks = false; 
+    /** Default maximum number of threads running javaMessages simultaneously for each engine; beyond these, javaMessage throws an exception */
+    public static int MAX_CALLBACK_THREADS = 256;
+    /** Runs the javaMessages needing a thread of their own; see getCallbackExecutor() */
+    protected ExecutorService callbackExecutor = null;
+    /** callbackExecutor was created (and so will be shut down) by this engine */
+    private boolean ownCallbackExecutor = false;
+    /** javaMessages given to callbackExecutor which did not finish yet */
+    protected final AtomicInteger pendingCallbacks = new AtomicInteger();
     
 	private boolean allowSimultaneousThreads = false;
     
-    /** Prolog Goals whose execution has not yet finished or whose results have not yet been returned to their Java clients */
-    Vector<GoalToExecute> goalsToExecute;
-    /** javaMessage requests that have started execution and whose results have not yet been returned to Prolog. */
-    protected Vector<MessageExecuting> messagesExecuting;
+    /** Prolog Goals whose execution has not yet finished or whose results have not yet been returned to their Java clients, oldest first.
+    Concurrent, so that isIdle() and friends do not need the engine lock */
+    ConcurrentLinkedDeque<GoalToExecute> goalsToExecute;
+    /** goalsToExecute indexed by timestamp */
+    final ConcurrentHashMap<Integer,GoalToExecute> goalsByTimestamp = new ConcurrentHashMap<Integer,GoalToExecute>();
+    /** javaMessage requests that have started execution and whose results have not yet been returned to Prolog, oldest first. */
+    protected ConcurrentLinkedDeque<MessageExecuting> messagesExecuting;
     
     /** There's an open call to 
     @see #goal(String, String, Object[], String)
@@ -123,6 +149,14 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 	
 	protected boolean localEngine;
 	
+	/** Term transports, see setTermTransport */
+	public static final int TERMS_AS_OBJECTS = 0;
+	public static final int TERMS_AS_TEXT = 1;
+	public static final int TERMS_AS_CODEC = 2;
+	protected int termTransport = TERMS_AS_OBJECTS;
+	protected volatile boolean lazyInflation = false;
+	protected volatile boolean interpretEscapes = false;
+	
 
 	/** Create a Prolog executor, possibly spawning it in a different process or loading it into memory, depending on the implementation by our subclass.
 	@param prologBinDirectoryOrCommand File path to Prolog machine, see subclass docs for precise semantics
@@ -154,8 +188,8 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 		this.prologBinDirectoryOrCommand = prologBinDirectoryOrCommand;
 		makeTempDirectory(); // not just for InterProlog startup! That's why this is NOT conditional
 		knownObjects = new ObjectRegistry();
-		goalsToExecute = new Vector<GoalToExecute>();
-		messagesExecuting = new Vector<MessageExecuting>();
+		goalsToExecute = new ConcurrentLinkedDeque<GoalToExecute>();
+		messagesExecuting = new ConcurrentLinkedDeque<MessageExecuting>();
         try{ getRealJavaObjectMethod = findMethod (getClass(),"getRealJavaObject",new Class[]{Object.class});} 
         catch(Exception ex){throw new IPException("could not find special getRealJavaObject method:"+ex);}
         Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -308,10 +342,15 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 		progressMessage("Shutting down");
 		if (isShutingDown()) progressMessage("Was already shuting down");
 		shutingDown = true;
+		workAvailable();
+		stateChanged();
 		//TODO: should this be done??: endAllJavaMessages(new IPException("Shutting down"));
 		abortTasks();
 		// prologHandler.interrupt(); // cannot do this here, in NativeEngine crashes the whole JVM
 		knownObjects.clear();
+		synchronized(this){
+			if (ownCallbackExecutor) callbackExecutor.shutdown();
+		}
 	}
 
 	/** The engine is in the process of shuting down */
@@ -652,6 +691,7 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 	    doInterrupt(wait,true,true);
 	    waitUntilIdle();
 	    interrupting = false;
+	    stateChanged();
 	}
 	
 	public void interrupt(){
@@ -964,7 +1004,7 @@ public abstract class AbstractPrologEngine implements PrologEngine{
             if (goalToDo.wasAborted()) throw new IPAbortedException(G+" was aborted by Java-side cascading");
             if (goalToDo.wasInterrupted()) throw new IPInterruptedException(G+" was interrupted by Java-side cascading"); 
             if (result.wasInterrupted(this)) {
-            	while(interrupting) Thread.yield(); // Let the interrupt request be fully served
+            	waitUntilInterruptServed();
             	throw new IPInterruptedException(G+" was interrupted, Prolog detected\n"+result.error); 
             }
             if (result.error!=null)
@@ -981,6 +1021,91 @@ public abstract class AbstractPrologEngine implements PrologEngine{
         return resultToReturn;
     }
 	
+	/** Asynchronous version of deterministicGoal(G,OVar,objectsP,RVars): returns immediately, without blocking the calling thread.
+	The future is completed by the Prolog handler thread when the goal result arrives, with the bindings deterministicGoal would return 
+	(null if G fails), or exceptionally with the exception it would throw. Dependent stages executing synchronously delay 
+	all other interaction with this engine, so avoid blocking in them. javaMessage callbacks during the goal execute in new threads.
+	@see #deterministicGoal(String, String, Object[], String)
+	*/
+	public CompletableFuture<Object[]> deterministicGoalAsync(final String G, String OVar, Object[] objectsP, String RVars){
+		final CompletableFuture<Object[]> future = new CompletableFuture<Object[]>();
+		try{
+			int mytimestamp = incGoalTimestamp();
+			GoalFromJava GO = makeDGoalObject(G, OVar, objectsP, RVars, mytimestamp);
+			progressMessage("Schedulling asynchronous goal "+G+", timestamp "+mytimestamp);
+			final GoalToExecute goalToDo = new GoalToExecute(GO,null); // no caller thread waiting
+			goalToDo.getResultFuture().thenAccept(new Consumer<ResultFromProlog>(){
+				public void accept(ResultFromProlog result){
+					try{
+						asyncGoalEnded(goalToDo);
+						future.complete(asyncGoalBindings(G,goalToDo,result));
+					} catch (Throwable e){
+						future.completeExceptionally(e);
+					}
+				}
+			});
+			submitAsyncGoal(goalToDo);
+		} catch (Throwable e){
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	/** Same as deterministicGoalAsync(G,null,null,RVars) */
+	public CompletableFuture<Object[]> deterministicGoalAsync(String G, String RVars){
+		return deterministicGoalAsync(G,null,null,RVars);
+	}
+	
+	/** Hands over a goal from deterministicGoalAsync for Prolog execution */
+	protected void submitAsyncGoal(GoalToExecute goalToDo){
+		scheduleGoal(goalToDo);
+	}
+	
+	/** Hook for engine bookkeeping after an asynchronous goal ends, before its future is completed */
+	protected void asyncGoalEnded(GoalToExecute goalToDo){
+	}
+	
+	/** Same checks as deterministicGoal's, for an ended asynchronous goal */
+	protected Object[] asyncGoalBindings(String G, GoalToExecute goalToDo, ResultFromProlog result){
+		lastSolutionWasUndefined = result.undefined;
+		if (goalToDo.wasAborted()) {
+			if (shutingDown) throw new UnavailableResultException("IP aborted goal was "+G);
+			else throw new IPAbortedException(G+" was aborted");
+		}
+		if (goalToDo.wasInterrupted()) throw new IPInterruptedException(G+" was interrupted by Java-side cascading"); 
+		if (result.wasInterrupted(this)) 
+			throw new IPInterruptedException(G+" was interrupted, Prolog detected\n"+result.error); 
+		if (result.error instanceof IPException)
+			throw (IPException)result.error;
+		if (result.error!=null)
+			throw new IPPrologError(result.error);
+		if (result.timestamp!=goalToDo.getTimestamp())
+			throw new IPException("bad timestamp in deterministicGoalAsync, got "+result.timestamp+" instead of "+goalToDo.getTimestamp());
+		if (result.succeeded) return result.rVars;
+		else return null;
+	}
+	
+	/** Calls several goals in sequence within a single Prolog call, saving the per call overhead of deterministicGoal for many tiny goals. 
+	Each goal is evaluated as by deterministicGoal, and its failure or error does not affect the others. 
+	@param goals built with makeGoal
+	@return a ResultFromProlog for each goal, in the same order; its succeeded, error and rVars fields are the goal's outcome
+	@see #makeGoal(String, String, Object[], String)
+	*/
+	public ResultFromProlog[] deterministicGoalBatch(List<GoalFromJava> goals){
+		Object[] bindings = deterministicGoal("ipDeterministicGoalBatch(_IP_Goals,_IP_Results)","_IP_Goals",goals.toArray(),"[_IP_Results]");
+		if (bindings==null) throw new IPException("deterministicGoalBatch failed");
+		Object[] results = (Object[])bindings[0];
+		ResultFromProlog[] R = new ResultFromProlog[results.length];
+		System.arraycopy(results,0,R,0,results.length);
+		return R;
+	}
+	
+	/** Prepares a goal for deterministicGoalBatch; arguments as in deterministicGoal
+	@see #deterministicGoal(String, String, Object[], String) */
+	public GoalFromJava makeGoal(String G, String OVar, Object[] objectsP, String RVars){
+		return makeDGoalObject(G, OVar, objectsP, RVars, incGoalTimestamp());
+	}
+	
 	/** A parameterless goal with no result other than success/failure. Same as deterministicGoal(G, null,null,"[]") */
 	public boolean deterministicGoal(String G){
 		return (deterministicGoal(G, null,null,"[]")!=null);
@@ -999,11 +1124,77 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 	/** Useful for inter-Prolog goal calling through Java. For example, to call a goal G in another PrologEngine E:
 	buildTermModel(G,GM), javaMessage(E,SM,deterministicGoal(GM)), recoverTermModel(SM,Solution) */
 	public TermModel deterministicGoal(TermModel G){
+		if (termTransport==TERMS_AS_CODEC){
+			Object[] bindings = deterministicGoal("ipDecodeTerm(GB,G), call(G), ipEncodeTerm(G,SB)","[GB]",new Object[]{TermCodec.encode(G)},"[SB]");
+			if (bindings==null) return null;
+			else return TermCodec.decode((byte[])bindings[0]);
+		}
 		Object[] bindings = deterministicGoal("recoverTermModel(GM,G), call(G), buildTermModel(G,SM)","[GM]",new Object[]{G},"[SM]");
 		if (bindings==null) return null;
 		else return (TermModel)bindings[0];
 	}
 	
+	/** Chooses how terms are transported by deterministicGoalTerms and deterministicGoal(TermModel): 
+	TERMS_AS_OBJECTS (the default) serializes TermModel objects built with buildTermModel/2, TERMS_AS_TEXT uses 
+	InitiallyFlatTermModel's canonical text (XSB only, and for terms from Prolog only), TERMS_AS_CODEC uses TermCodec's compact encoding */
+	public void setTermTransport(int transport){
+		if (transport<TERMS_AS_OBJECTS || transport>TERMS_AS_CODEC) throw new IPException("Bad term transport:"+transport);
+		termTransport = transport;
+	}
+	
+	public int getTermTransport(){
+		return termTransport;
+	}
+	
+	/** If true, InitiallyFlatTermModels received from Prolog are inflated one level at a time, as their children are first 
+	accessed (with getChild, getChildCount etc.); so for huge terms memory and time depend on how much of them is used. 
+	Variables are numbered in order of parsing, and code must not read the children field directly. False by default */
+	public void setLazyInflation(boolean yes){
+		lazyInflation = yes;
+	}
+	
+	public boolean isLazyInflation(){
+		return lazyInflation;
+	}
+	
+	/** If true, backslash escapes in the quoted atoms of InitiallyFlatTermModels and term list files from Prolog are interpreted 
+	ISO style; by default they're kept as they come from Prolog */
+	public void setInterpretEscapes(boolean yes){
+		interpretEscapes = yes;
+	}
+	
+	public boolean isInterpretingEscapes(){
+		return interpretEscapes;
+	}
+	
+	/** Prolog predicate building the representation of a term sent by the current term transport */
+	String termBuilder(){
+		if (termTransport==TERMS_AS_CODEC) return "ipEncodeTerm";
+		else if (termTransport==TERMS_AS_TEXT) return "buildInitiallyFlatTermModel";
+		else return "buildTermModel";
+	}
+	
+	/** Calls G once, and returns the bindings of the Prolog variables in TermVars as terms, sent by the transport chosen with setTermTransport.
+	Variables shared among these terms remain shared, i.e. have equal VariableNodes
+	@param G goal text, as in deterministicGoal
+	@param OVar as in deterministicGoal
+	@param objectsP as in deterministicGoal
+	@param TermVars Prolog list with the variables (or terms) to return, e.g. "[X,Y]"
+	@return the terms, or null if G failed
+	@see #deterministicGoal(String, String, Object[], String) */
+	public TermModel[] deterministicGoalTerms(String G, String OVar, Object[] objectsP, String TermVars){
+		Object[] bindings = deterministicGoal("("+G+"), "+termBuilder()+"("+TermVars+",_IP_TM)",OVar,objectsP,"[_IP_TM]");
+		if (bindings==null) return null;
+		TermModel list;
+		if (termTransport==TERMS_AS_CODEC) list = TermCodec.decode((byte[])bindings[0]);
+		else list = (TermModel)bindings[0];
+		return list.flatList();
+	}
+	
+	public TermModel[] deterministicGoalTerms(String G, String TermVars){
+		return deterministicGoalTerms(G,null,null,TermVars);
+	}
+	
 	/** Similar to deterministicGoal, but rather than just the first solution returns an Iterator which lazily returns bindings for solutions.
 	This method returns immediately, because the actual Prolog execution will happen on a different thread during the messages sent to the iterator.
 	If G fails, the Iterator will have no elements. 
@@ -1014,38 +1205,72 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 		return new SolutionIterator(this,G,OVar,objectsP,RVars); // That's where the real action will be		
 	}
 	
+	/** Same as goal(G,OVar,objectsP,RVars), but Prolog may compute up to prefetch solutions ahead of their consumption by the iterator's client.
+	Use only with goals whose solutions do not depend on side effects of the client */
+	public SolutionIterator goal(String G, String OVar, Object[] objectsP, String RVars, int prefetch){
+		if (nonDeterministicGoalActive) throw new IPException("Can not call non deterministic goal until the previous goal ends");
+		nonDeterministicGoalActive= true;
+		return new SolutionIterator(this,G,OVar,objectsP,RVars,prefetch);
+	}
+	
 	/** Useful when you're constructing objects from Prolog, but don't need to pass any from Java. Same as goal(G,null,null,RVars) */
 	public SolutionIterator goal(String G,String RVars){
 		return goal(G,null,null,RVars);
 	}
 	
+	/** Solutions of G pushed to Java as instances of Template, sent by the current term transport as Prolog computes them.
+	Like goal(...), this returns immediately and only one non deterministic goal may be active; close the stream if not consumed to the end.
+	@param capacity how many terms may wait for the consumer before Prolog blocks
+	@see TermStream */
+	public TermStream termStream(String Template, String G, String OVar, Object[] objectsP, int capacity){
+		if (capacity<1) throw new IPException("Bad TermStream capacity: "+capacity);
+		if (nonDeterministicGoalActive) throw new IPException("Can not call non deterministic goal until the previous goal ends");
+		nonDeterministicGoalActive= true;
+		return new TermStream(this,Template,G,OVar,objectsP,capacity);
+	}
+	
+	/** Same as termStream(Template,G,null,null,16) */
+	public TermStream termStream(String Template, String G){
+		return termStream(Template,G,null,null,16);
+	}
+	
 	public boolean lastSolutionUndefined(){
 		return lastSolutionWasUndefined;
 	}
 	
 	// Increment the goal counter
-	protected int incGoalTimestamp(){
+	protected synchronized int incGoalTimestamp(){
 		goalTimestamp++; 
 		if (goalTimestamp<0) throw new IPException("goalTimestamp did wrap around, please improve it...");
 		return goalTimestamp;
 	}
 	
 	/** Adds goal to pool awaiting execution by Prolog */
-	protected synchronized void scheduleGoal(GoalToExecute g){
-		goalsToExecute.addElement(g);
+	protected void scheduleGoal(GoalToExecute g){
+		goalsByTimestamp.put(g.getTimestamp(),g);
+		goalsToExecute.addLast(g);
+		workAvailable(); // the Prolog handler may be waiting in doSomething()
 	}	
 	
-	protected synchronized GoalToExecute moreRecentToExecute(){
-		for (int i=goalsToExecute.size()-1; i>=0; i--){
-			GoalToExecute gte = goalsToExecute.elementAt(i);
+	/** Wakes up the Prolog handler thread, if it is waiting in doSomething() for a javaMessage result or a new goal. 
+	Do not invoke this. Due to the use of several Java packages in InterProlog this method must be qualified as public */
+	public synchronized void workAvailable(){
+		notifyAll();
+	}
+	
+	protected GoalToExecute moreRecentToExecute(){
+		Iterator<GoalToExecute> goals = goalsToExecute.descendingIterator();
+		while (goals.hasNext()){
+			GoalToExecute gte = goals.next();
 			if (!gte.hasStarted()) return gte;
 		}
 		return null;
 	}
 	
-	protected synchronized GoalToExecute findLastGTERunning(){
-		for (int i=goalsToExecute.size()-1; i>=0; i--){
-			GoalToExecute gte = goalsToExecute.elementAt(i);
+	protected GoalToExecute findLastGTERunning(){
+		Iterator<GoalToExecute> goals = goalsToExecute.descendingIterator();
+		while (goals.hasNext()){
+			GoalToExecute gte = goals.next();
 			// System.out.println("findLastGTEWithProperThread: "+gte.getCallerThread());
 			if (gte.hasStarted()&&!gte.hasEnded()) 
 				return gte;
@@ -1054,46 +1279,41 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 		// throw new IPException("Could not find thread for callback; currentDGthread=="+currentDGthread()+"; "+goalsToExecute.size()+" GTEs");
 	}
 	
-	/** Currently does a dumb linear search, enough for our scenarios. 
-	2 future possibilities: use Hashtable; make ResultFromProlog bring back a reference to GoalFromJava */
-	protected synchronized GoalToExecute forgetGoal(int timestamp){
-		for (int i=0; i<goalsToExecute.size(); i++){
-			GoalToExecute gte = goalsToExecute.elementAt(i);
-			if (gte.getTimestamp()==timestamp){
-				goalsToExecute.removeElementAt(i);
-				return gte;
-			}
+	/** Finds the goal by its timestamp; goals usually end most recent first, so its removal from goalsToExecute searches from the end */
+	protected GoalToExecute forgetGoal(int timestamp){
+		GoalToExecute gte = goalsByTimestamp.remove(timestamp);
+		if (gte!=null) {
+			goalsToExecute.removeLastOccurrence(gte);
+			stateChanged();
 		}
-		return null;
+		return gte;
 	}
 	
 	/** Just adds to messagesExecuting */
-	protected synchronized void addMessage(MessageExecuting m){
-		messagesExecuting.addElement(m);
+	protected void addMessage(MessageExecuting m){
+		messagesExecuting.addLast(m);
+		stateChanged(); // e.g. a pause may now accept goals
 	}
 	
-	protected synchronized void forgetMessage(MessageExecuting m){
-		messagesExecuting.removeElement(m);
+	protected void forgetMessage(MessageExecuting m){
+		messagesExecuting.removeLastOccurrence(m);
+		stateChanged();
 	}
 	
-	protected synchronized MessageExecuting lastMessageRequest(){
-		MessageExecuting last;
-		if (messagesExecuting.size()==0) last=null;
-		else last = messagesExecuting.lastElement();
-		return last;
+	protected MessageExecuting lastMessageRequest(){
+		return messagesExecuting.peekLast();
 	}
 	
-	/** The engine is doing nothing: no pending Prolog goals nor Java callbacks */
-	public synchronized boolean isIdle(){
-		//System.out.println("messagesExecuting.size()=="+messagesExecuting.size()+",goalsToExecute.size()=="+goalsToExecute.size());
-		return messagesExecuting.size()==0 && goalsToExecute.size()==0;
+	/** The engine is doing nothing: no pending Prolog goals nor Java callbacks. Does not block */
+	public boolean isIdle(){
+		return messagesExecuting.isEmpty() && goalsToExecute.isEmpty();
 	}
 	
 	/**
 	 * @param active thread set to be filled
 	 * @return the paused (javaMessage) thread, if it exists; null otherwise
 	 */
-	protected synchronized Thread activeThreads(HashSet<Thread> active){
+	protected Thread activeThreads(HashSet<Thread> active){
 		Thread pausedThread = null;
 		for (GoalToExecute gte:goalsToExecute){
 			Thread GT = gte.getCallerThread();
@@ -1136,7 +1356,7 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 	
 	/** To be used only if this engine has a EngineController (single) listener 
 	 * @return Whether the engine is paused in mid computation and receptive to (possibly restricted) commands */
-	public synchronized boolean isPaused(){
+	public boolean isPaused(){
 		if (detectsPauses)
 			return paused;
 		if (getThePrologListener() instanceof EngineController)
@@ -1163,8 +1383,9 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 
 	/** Do not invoke this */
     public /*no point, really...: synchronized*/ void endAllTasks(Exception e) {
-        for (int i=goalsToExecute.size()-1; i>=0 ; i--){ // abort most recent first
-            GoalToExecute gte = goalsToExecute.elementAt(i);
+        Iterator<GoalToExecute> goals = goalsToExecute.descendingIterator();
+        while (goals.hasNext()){ // abort most recent first
+            GoalToExecute gte = goals.next();
             gte.setResult(new ResultFromProlog(gte.getTimestamp(), false, 0, e, false));
         }
         cleanupTasks();
@@ -1172,19 +1393,15 @@ public abstract class AbstractPrologEngine implements PrologEngine{
     
     /** Do not invoke this. Due to the use of several Java packages in InterProlog this method must be qualified as public */
 	public synchronized void abortTasks(){
-		for (int i=0; i<goalsToExecute.size(); i++){
-			GoalToExecute gte = goalsToExecute.elementAt(i);
+		for (GoalToExecute gte: goalsToExecute)
 			gte.abort();
-		}
 		cleanupTasks();
 	}
 	
     /** Do not invoke this. Due to the use of several Java packages in InterProlog this method must be qualified as public */
 	public synchronized void interruptTasks(){
-		for (int i=0; i<goalsToExecute.size(); i++){
-			GoalToExecute gte = goalsToExecute.elementAt(i);
+		for (GoalToExecute gte: goalsToExecute)
 			gte.interrupt();
-		}
 		cleanupTasks();
 	}
 	
@@ -1194,14 +1411,17 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 			if (t!=null && t.isAlive() && shutingDown) 
 				t.interrupt();
 		}
-		goalsToExecute.removeAllElements();
-		messagesExecuting.removeAllElements();
+		goalsToExecute.clear();
+		goalsByTimestamp.clear();
+		messagesExecuting.clear();
+		stateChanged();
 	}
 	
 	/** This does NOT call cleanupTasks */
 	protected void endAllJavaMessages(Exception e){
-		for (int m=messagesExecuting.size()-1 ; m>=0; m--){
-			MessageExecuting M = messagesExecuting.elementAt(m);
+		Iterator<MessageExecuting> messages = messagesExecuting.descendingIterator();
+		while (messages.hasNext()){
+			MessageExecuting M = messages.next();
 			M.setResult(new ResultFromJava(M.getTimestamp(), null, e, null));
 		}
 	}
@@ -1213,19 +1433,61 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 	}
 	
 	public void waitUntilAvailable(){
-		try{
-            while(!isAvailable()) Thread.sleep(0,1);
-		} catch (InterruptedException e){
-			throw new IPException("Bad interrupt: "+e); 
+		while(true){
+			long V = stateVersion();
+			if (isAvailable()) return;
+			awaitStateChange(V);
 		}
 	}
 	
 	/** Sleeps the current Java thread until this engine is idle. If this never happens, we're in trouble. */
 	public void waitUntilIdle(){
-		try{
-			while(!isIdle()) Thread.sleep(0,1);
-		} catch (InterruptedException e){
-			throw new IPException("Bad interrupt: "+e); 
+		while(true){
+			long V = stateVersion();
+			if (isIdle()) return;
+			awaitStateChange(V);
+		}
+	}
+	
+	/** Waits until no interrupt is being requested */
+	protected void waitUntilInterruptServed(){
+		while(true){
+			long V = stateVersion();
+			if (!interrupting) return;
+			awaitStateChange(V);
+		}
+	}
+	
+	/** Maximum mS a thread waits in awaitStateChange() without being notified; just a safety net, as all relevant state changes 
+	should call stateChanged() */
+	protected static final long MAX_STATE_WAIT = 100;
+	/** Number of state changes so far; guarded by stateLock */
+	private long stateChanges = 0;
+	private final Object stateLock = new Object();
+	
+	/** Wakes up the threads waiting (in waitUntilAvailable(), waitUntilIdle() etc.) for this engine's availability, idleness or other state to change. 
+	Do not invoke this. Due to the use of several Java packages in InterProlog this method must be qualified as public */
+	public void stateChanged(){
+		synchronized(stateLock){
+			stateChanges++;
+			stateLock.notifyAll();
+		}
+	}
+	
+	/** To be obtained before checking the state waited for, and given to awaitStateChange() */
+	protected long stateVersion(){
+		synchronized(stateLock){
+			return stateChanges;
+		}
+	}
+	
+	/** Blocks the current thread until stateChanged() is called after version V was obtained, or MAX_STATE_WAIT mS pass; 
+	the caller must then check its state again */
+	protected void awaitStateChange(long V){
+		synchronized(stateLock){
+			if (stateChanges!=V) return;
+			try{ stateLock.wait(MAX_STATE_WAIT); }
+			catch (InterruptedException e){throw new IPException("Bad interrupt: "+e);}
 		}
 	}
 	
@@ -1246,14 +1508,14 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 				MessageExecuting me = new MessageExecuting(mfp,this,calling);
 				synchronized(this){
 					addMessage(me); // here?
-					if (threadedCallbacks || mfp.requiresNewThread()) new Thread(me,"threaded callback").start();
+					if (threadedCallbacks || mfp.requiresNewThread()) executeCallback(me,"threaded callback");
 					else {
 						GoalToExecute lastGTE = findLastGTERunning();
 						if (lastGTE!=null && calling!=null /* there is a real dg running, not just some dummy concocted for OnTop...*/) {
 							//if (lastGTE.getCallerThread()!=currentDGthread())
 							//	throw new IPException("Inconsistent threads. Expected "+currentDGthread()+" and got "+lastGTE.getCallerThread());
 							lastGTE.executeInThread(me);
-						} else new Thread(me,"GoalToExecute").start(); // had to uncomment this, as top level javaMessages would break
+						} else executeCallback(me,"GoalToExecute"); // had to uncomment this, as top level javaMessages would break
 						// else throw new IPException("Could not find proper GoalToExecute");
 						// problematic... if lastGTE == null me.run(); // If there's no active deterministicGoal, use this thread...
 					}
@@ -1262,6 +1524,7 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 			} else {
 				progressMessage("received first (dummy) javaMessage");
 				topGoalHasStarted = true; // this branch actually executes only for AbstractNativeEngines
+				stateChanged();
 			}
 		} else if (x instanceof ResultFromProlog){
 			ResultFromProlog rfp = (ResultFromProlog)x;
@@ -1278,16 +1541,70 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 		progressMessage("About to leave handleCallback");
 		return doSomething();
 	}
+	/** Runs the javaMessage in a thread of the callback executor, named after tag and the message while it runs. If the executor refuses it
+	(e.g. all its threads are busy) the javaMessage fails with an exception in Prolog */
+	protected void executeCallback(final MessageExecuting me, final String tag){
+		pendingCallbacks.incrementAndGet();
+		try{
+			getCallbackExecutor().execute(new Runnable(){
+				public void run(){
+					Thread T = Thread.currentThread();
+					String oldName = T.getName();
+					T.setName(tag+": "+me.getM().methodName);
+					try{
+						me.run();
+					} finally{
+						T.setName(oldName);
+						pendingCallbacks.decrementAndGet();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e){
+			pendingCallbacks.decrementAndGet();
+			me.setResult(new ResultFromJava(me.getTimestamp(), null, 
+				new IPException("javaMessage "+me.getM().methodName+" rejected, "+pendingCallbacks.get()+" callbacks pending: "+e), null));
+		}
+	}
+	
+	/** The executor for javaMessages needing a thread of their own, because of setThreadedCallbacks(true) or no deterministicGoal being 
+	active. Unless one was given with setCallbackExecutor, a pool of at most MAX_CALLBACK_THREADS daemon threads, 
+	which does not queue: when all are busy further javaMessages are rejected */
+	public synchronized ExecutorService getCallbackExecutor(){
+		if (callbackExecutor==null){
+			callbackExecutor = new ThreadPoolExecutor(0, MAX_CALLBACK_THREADS, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory(){
+				int count = 0;
+				public synchronized Thread newThread(Runnable r){
+					Thread T = new Thread(r,"Callback thread "+(++count));
+					T.setDaemon(true);
+					return T;
+				}
+			});
+			ownCallbackExecutor = true;
+		}
+		return callbackExecutor;
+	}
+	
+	/** Use E to run javaMessages needing a thread of their own, e.g. a pool with a queue or, on Java 21 or later, 
+	Executors.newVirtualThreadPerTaskExecutor(). E is not shut down by this engine. Should be called before any such javaMessage */
+	public synchronized void setCallbackExecutor(ExecutorService E){
+		if (E==null) throw new IPException("Null callback executor");
+		if (ownCallbackExecutor) callbackExecutor.shutdown();
+		callbackExecutor = E;
+		ownCallbackExecutor = false;
+	}
+	
+	/** Number of javaMessages given to the callback executor which did not finish yet, either running or waiting for a thread */
+	public int getPendingCallbacks(){
+		return pendingCallbacks.get();
+	}
+	
+	/** Maximum mS the Prolog handler waits in doSomething() without being notified; just a safety net, as all work 
+	becoming ready should call workAvailable() */
+	protected static final long MAX_HANDLER_WAIT = 500;
+	
 	/** return result to last javaMessage or pick more recent GoalToExecute */	
 	protected Object doSomething(){
 		while(!shutingDown){
-			// let some work proceed elsewhere; this seems light enough for now, if not use wait/notify around here too:
-			if (isIdle())
-				try { Thread.sleep(50,100); }
-				catch (InterruptedException e){throw new IPException("Bad interrupt: "+e);}
-			else // Thread.yield(): too heavy, for ex. when in a modal dialog
-				try { Thread.sleep(50,100); }
-				catch (InterruptedException e){throw new IPException("Bad interrupt: "+e);}
 			synchronized(this){
 				MessageExecuting last = lastMessageRequest();
 				//System.err.println("last message:"+last);
@@ -1301,6 +1618,9 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 					// gte.prologWasCalled();
 					return gte; 
 				} // else should clear all messages executing ??
+				// let some work proceed elsewhere, until MessageExecuting.setResult or scheduleGoal notify us
+				try { wait(MAX_HANDLER_WAIT); }
+				catch (InterruptedException e){throw new IPException("Bad interrupt: "+e);}
 			}
 		}
 		return null;
@@ -1369,17 +1689,14 @@ public abstract class AbstractPrologEngine implements PrologEngine{
                 if (shortClassName ((Class<?>)target).equals (callback.getRealMethodName())) {
                     // It's a (public...) constructor invocation
                     //Constructor constructor = ((Class)target).getConstructor(formalArguments);
-                    Constructor<?> constructor = findConstructor ((Class<?>)target,formalArguments);
-                    constructor.setAccessible(true);
-                    result = constructor.newInstance(localArguments);
+                    result = dispatchCache.constructor((Class<?>)target,formalArguments).invoke(null,localArguments);
                 } else {
                     // It's a class (static) method invocation; 
                     // some day we may want to consider messaging the class object directly, e.g. to fetch annotations
                     // Method method = ((Class)target).getMethod(callback.methodName,formalArguments);
-                    method = findMethod((Class<?>)target,callback.getRealMethodName(),formalArguments);
-                    //result = method.invoke(target,localArguments);
-                    method.setAccessible(true);
-                    result = myInvoke(method,null,localArguments);
+                    DispatchCache.Invoker invoker = dispatchCache.staticMethod((Class<?>)target,callback.getRealMethodName(),formalArguments);
+                    method = invoker.getMethod();
+                    result = invoker.invoke(null,localArguments);
                 }
             } else {
             	if (target.getClass().isArray()) {
@@ -1393,9 +1710,9 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 	                // A regular instance method invocation
 	                // Method method = target.getClass().getMethod(callback.methodName,formalArguments);
 	                //result = findMethod(target.getClass(),callback.methodName,formalArguments).invoke(target,localArguments);
-	                method = findMethod(target.getClass (),callback.getRealMethodName(),formalArguments);
-	                method.setAccessible(true);
-	                result = myInvoke(method,target,localArguments);
+	                DispatchCache.Invoker invoker = dispatchCache.method(target.getClass (),callback.getRealMethodName(),formalArguments);
+	                method = invoker.getMethod();
+	                result = invoker.invoke(target,localArguments);
             	}
             }
             // The result will be an invisible object, except if a String or a wrapper or a TermModel or a serializable array...
@@ -1429,25 +1746,6 @@ public abstract class AbstractPrologEngine implements PrologEngine{
             return new ResultFromJava (callback.timestamp,result,exceptionMessage,null);
     }
     
-    /** Preprocess arguments to deal with methods with variant parameters */
-    private static Object myInvoke(Method method,Object target,Object[] localArguments) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException{
-		Object[] readyArgs;
-    	if (method.isVarArgs()){
-    		readyArgs = new Object[method.getParameterTypes().length];
-    		for (int a=0; a<readyArgs.length-1; a++)
-    			readyArgs[a] = localArguments[a];
-    		Object[] variantArgs = new Object[localArguments.length-method.getParameterTypes().length+1];
-    		for (int a=0; a<variantArgs.length; a++)
-    			variantArgs[a] = localArguments[a+readyArgs.length-1];
-    		readyArgs[readyArgs.length-1] = variantArgs;
-    	} else readyArgs = localArguments;
-    	/* System.err.println(method);
-    	System.err.println(" "+Arrays.toString(readyArgs));
-    	System.err.println("  "+Arrays.toString((Object[])readyArgs[readyArgs.length-1])); */
-    	if (target==null) return method.invoke(null,readyArgs);
-    	else return method.invoke(target,readyArgs);
-    }
-	
 	/** Returns true if the object is Serializable or, being an array, its element type is primitive or Serializable */
 	public static boolean isSerializable(Object x){
 		if (x.getClass().isArray())
@@ -1597,6 +1895,7 @@ public abstract class AbstractPrologEngine implements PrologEngine{
         Method method = URLClassLoader.class.getDeclaredMethod("addURL", new Class[]{URL.class});
         method.setAccessible(true);
         method.invoke(ClassLoader.getSystemClassLoader(), new Object[]{url});
+        DispatchCache.invalidateAll();
     }
 
     
@@ -1673,6 +1972,25 @@ public abstract class AbstractPrologEngine implements PrologEngine{
         return knownObjects.unregisterJavaObjects(cls);
     }
     
+    /** Chooses how registered objects are referenced: ObjectRegistry.STRONG_REFERENCES (the default), WEAK_REFERENCES or SOFT_REFERENCES.
+    With the latter two, objects referred only from Prolog may be garbage collected, so clients should keep them reachable
+    for as long as Prolog uses them; Prolog can learn the IDs of collected objects with ipDeadJavaObjects/1 */
+    public void setObjectReferences(int kind){
+        knownObjects.setReferenceKind(kind);
+    }
+    
+    /** Used by ipDeadJavaObjects/1: returns the IDs of registered objects garbage collected since the previous call,
+    which may be reused for objects registered afterwards */
+    public int[] takeDeadObjectIDs(){
+        return knownObjects.takeReleasedIDs();
+    }
+    
+    /** Forgets the methods and constructors found for previous javaMessage calls; 
+    needed if classes are loaded anew by other means than addSoftwareLibrary */
+    public void clearDispatchCache(){
+        dispatchCache.invalidate();
+    }
+    
     /** If true, the Java execution of javaMessage predicates will happen in new threads (default);
 	if false, execution will be under the thread of the most recent deterministicGoal currently executing in Prolog */
     public void setThreadedCallbacks(boolean yes){
@@ -1751,6 +2069,7 @@ public abstract class AbstractPrologEngine implements PrologEngine{
     		L.javaMessaged(this);
     }
     protected synchronized void fireAvailabilityChange(){
+    	stateChanged();
     	for (PrologEngineListener L:listeners)
             L.availabilityChanged(this);
     }
@@ -1816,7 +2135,7 @@ public abstract class AbstractPrologEngine implements PrologEngine{
     	deterministicGoal("java('com.declarativa.interprolog.AbstractPrologEngine',loop)");
     }
     
-    public synchronized boolean executingOnJavaSide(){
+    public boolean executingOnJavaSide(){
     	return messagesExecuting.size() > goalsToExecute.size(); 
     }
     
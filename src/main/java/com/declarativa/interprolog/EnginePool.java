@@ -0,0 +1,255 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.declarativa.interprolog.util.IPException;
+import com.declarativa.interprolog.util.PrologHaltedException;
+
+/** A fixed size set of equivalent SubprocessEngines, each leased to a single client thread at a time.
+As each SubprocessEngine is a separate Prolog process, this is the way to have several goals executing in parallel.
+Engines are launched (and replaced, when found unhealthy on checkin or checkout) in background threads, and consult a common set of files
+before being leased; failed launches are retried for as long as the pool lives. Typical use:
+<pre>
+	SubprocessEngine engine = pool.checkout();
+	try { ... engine.deterministicGoal(...) ... ; pool.checkin(engine); }
+	catch (IPException e) { pool.checkin(engine,e); throw e; }
+</pre>
+*/
+public class EnginePool {
+	/** Creates the pool engines; all engines it creates should be equivalent */
+	public interface EngineFactory{
+		public SubprocessEngine newEngine();
+	}
+	/** mS to wait before retrying a failed engine launch; the wait doubles with each further attempt, up to MAX_LAUNCH_RETRY_DELAY */
+	public static final long LAUNCH_RETRY_DELAY = 1000;
+	public static final long MAX_LAUNCH_RETRY_DELAY = 30000;
+
+	protected final EngineFactory factory;
+	protected final int size;
+	/** Prolog files to consult on each new engine, pairs filename/requester as in consultFromPackage */
+	protected final ArrayList<Object[]> libraries = new ArrayList<Object[]>();
+	/** Engines ready to be leased */
+	protected final LinkedBlockingQueue<SubprocessEngine> idleEngines = new LinkedBlockingQueue<SubprocessEngine>();
+	/** Engines currently leased to clients */
+	protected final HashSet<SubprocessEngine> leasedEngines = new HashSet<SubprocessEngine>();
+	protected final ScheduledThreadPoolExecutor launcher;
+	protected volatile boolean shutingDown = false;
+	protected volatile Throwable lastLaunchProblem = null;
+	/** Failed attempts after which an engine launch is considered failing; see setMaxLaunchAttempts */
+	protected volatile int maxLaunchAttempts = 5;
+	/** Number of engines whose launch is failing, i.e. has failed at least maxLaunchAttempts times in a row */
+	protected final AtomicInteger failingLaunches = new AtomicInteger();
+
+	/**
+	 * @param factory builds each engine
+	 * @param size number of engines (Prolog processes) in the pool
+	 * @param filenames Prolog files to consult on each new engine, with consultFromPackage(filename,requester); may be null
+	 * @param requester
+	 */
+	public EnginePool(EngineFactory factory, int size, String[] filenames, Object requester){
+		if (size<1) throw new IPException("Bad EnginePool size: "+size);
+		this.factory = factory;
+		this.size = size;
+		if (filenames!=null)
+			for (String F:filenames)
+				libraries.add(new Object[]{F,requester});
+		launcher = new ScheduledThreadPoolExecutor(Math.min(size,Runtime.getRuntime().availableProcessors()), new ThreadFactory(){
+			int count = 0;
+			public synchronized Thread newThread(Runnable r){
+				Thread T = new Thread(r,"EnginePool launcher "+(++count));
+				T.setDaemon(true);
+				return T;
+			}
+		});
+		launcher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false); // pending launch retries die with the pool
+		for (int e=0;e<size;e++)
+			launchEngine(0);
+	}
+
+	public EnginePool(EngineFactory factory, int size){
+		this(factory,size,null,null);
+	}
+
+	/** Failed attempts after which an engine launch is considered failing: when all engines are failing and none is idle, 
+	 * checkout throws an IPException instead of waiting. Launches are still retried every MAX_LAUNCH_RETRY_DELAY mS,  
+	 * and the engine counts again as soon as one succeeds. Default is 5 */
+	public void setMaxLaunchAttempts(int attempts){
+		if (attempts<1) throw new IPException("Bad number of launch attempts: "+attempts);
+		maxLaunchAttempts = attempts;
+	}
+
+	public int getMaxLaunchAttempts(){
+		return maxLaunchAttempts;
+	}
+
+	protected void launchEngine(long delay){
+		launchEngine(delay,1,false);
+	}
+
+	private void launchEngine(long delay, final int attempt, final boolean failing){
+		if (shutingDown) return;
+		launcher.schedule(new Runnable(){
+			public void run(){
+				if (shutingDown) return;
+				SubprocessEngine engine = null;
+				try{
+					engine = factory.newEngine();
+					for (Object[] L:libraries)
+						engine.consultFromPackage((String)L[0],L[1]);
+					engine.waitUntilAvailable();
+				} catch (Throwable e){
+					lastLaunchProblem = e;
+					System.err.println("EnginePool could not launch engine: "+e);
+					if (engine!=null)
+						discardEngine(engine);
+					boolean nowFailing = failing || attempt>=maxLaunchAttempts;
+					if (nowFailing && !failing){
+						System.err.println("EnginePool failed launching engine "+attempt+" times, will keep retrying");
+						failingLaunches.incrementAndGet();
+					}
+					launchEngine(Math.min(LAUNCH_RETRY_DELAY<<Math.min(attempt-1,16),MAX_LAUNCH_RETRY_DELAY),attempt+1,nowFailing);
+					return;
+				}
+				if (failing) failingLaunches.decrementAndGet();
+				if (shutingDown) discardEngine(engine);
+				else idleEngines.add(engine);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/** Leases an engine, waiting for one to be available. Return it later with checkin. 
+	 * Idle engines found unhealthy are replaced in the background
+	 * @throws IPException with the last launch problem as cause, if no engine can be launched */
+	public SubprocessEngine checkout(){
+		try{
+			while(true){
+				checkCanLease();
+				SubprocessEngine engine = idleEngines.poll(LAUNCH_RETRY_DELAY,TimeUnit.MILLISECONDS);
+				if (engine==null) continue;
+				if (isHealthy(engine)) return leased(engine);
+				replaceEngine(engine);
+			}
+		} catch (InterruptedException e){
+			throw new IPException("Bad interrupt: "+e);
+		}
+	}
+
+	/** Leases an engine, waiting at most timeout mS for one to become available.
+	 * @return the engine, or null if none became available in time 
+	 * @throws IPException with the last launch problem as cause, if no engine can be launched */
+	public SubprocessEngine checkout(long timeout){
+		long deadline = System.currentTimeMillis()+timeout;
+		try{
+			while(true){
+				checkCanLease();
+				SubprocessEngine engine = idleEngines.poll(Math.max(deadline-System.currentTimeMillis(),0),TimeUnit.MILLISECONDS);
+				if (engine==null) return null;
+				if (isHealthy(engine)) return leased(engine);
+				replaceEngine(engine);
+			}
+		} catch (InterruptedException e){
+			throw new IPException("Bad interrupt: "+e);
+		}
+	}
+
+	private void checkCanLease(){
+		if (shutingDown) throw new IPException("EnginePool is shutting down");
+		if (failingLaunches.get()>=size && idleEngines.isEmpty())
+			throw new IPException("EnginePool could not launch any engine",lastLaunchProblem);
+	}
+
+	private SubprocessEngine leased(SubprocessEngine engine){
+		synchronized(leasedEngines){
+			leasedEngines.add(engine);
+		}
+		return engine;
+	}
+
+	/** Returns a leased engine to the pool; if it is no longer healthy it is discarded and replaced in the background */
+	public void checkin(SubprocessEngine engine){
+		checkin(engine,null);
+	}
+
+	/** Returns a leased engine to the pool
+	 * @param engine
+	 * @param problem the exception its client got while using it, or null; a PrologHaltedException causes the engine to be replaced
+	 */
+	public void checkin(SubprocessEngine engine, Throwable problem){
+		synchronized(leasedEngines){
+			if (!leasedEngines.remove(engine)) throw new IPException("Engine was not leased from this pool: "+engine);
+		}
+		if (shutingDown)
+			discardEngine(engine);
+		else if (problem instanceof PrologHaltedException || !isHealthy(engine))
+			replaceEngine(engine);
+		else idleEngines.add(engine);
+	}
+
+	/** Whether an engine can be (or keep being) leased. Subclasses may add checks, e.g. a trivial goal */
+	protected boolean isHealthy(SubprocessEngine engine){
+		return !engine.isShutingDown() && engine.isIdle() && engine.isAvailable();
+	}
+
+	protected void replaceEngine(SubprocessEngine engine){
+		discardEngine(engine);
+		launchEngine(0);
+	}
+
+	protected void discardEngine(final SubprocessEngine engine){
+		Runnable shutdown = new Runnable(){
+			public void run(){
+				try{ engine.shutdown(); }
+				catch (Exception e){ System.err.println("EnginePool could not shutdown engine: "+e); }
+			}
+		};
+		if (launcher.isShutdown()) shutdown.run();
+		else launcher.execute(shutdown);
+	}
+
+	/** Number of engines ready to be leased */
+	public int getIdleCount(){
+		return idleEngines.size();
+	}
+
+	/** Number of engines currently leased */
+	public int getLeasedCount(){
+		synchronized(leasedEngines){
+			return leasedEngines.size();
+		}
+	}
+
+	public int getSize(){
+		return size;
+	}
+
+	/** @return the last exception preventing an engine from being launched, or null */
+	public Throwable getLastLaunchProblem(){
+		return lastLaunchProblem;
+	}
+
+	/** Shuts down all idle engines and stops launching new ones; leased engines will be shut down as they are checked in */
+	public void shutdown(){
+		shutingDown = true;
+		SubprocessEngine engine;
+		while((engine=idleEngines.poll())!=null)
+			discardEngine(engine);
+		launcher.shutdown();
+	}
+
+	public boolean isShutingDown(){
+		return shutingDown;
+	}
+}
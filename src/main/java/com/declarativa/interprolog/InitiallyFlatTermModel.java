@@ -6,19 +6,23 @@ Use and distribution, without any warranties, under the terms of the
 Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
 */
 package com.declarativa.interprolog;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.Reader;
-import java.io.StreamTokenizer;
-import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+import com.declarativa.interprolog.util.AtomTable;
 import com.declarativa.interprolog.util.IPException;
-import com.declarativa.interprolog.util.MyStreamTokenizer;
+import com.declarativa.interprolog.util.MappedFileReader;
+import com.declarativa.interprolog.util.PrologInputObjectStream;
+import com.declarativa.interprolog.util.TermLexer;
 import com.declarativa.interprolog.util.VariableNode;
 /** A TermModel specialization so serialization is done faster, based on string representations of the term. On the Prolog side
 a specification for this can be obtained with buildInitiallyFlatTermModel(T,M) */
@@ -26,8 +30,19 @@ public class InitiallyFlatTermModel extends TermModel{
 	private static final long serialVersionUID = 6354585189997233327L;
 	private String canonicalTerm;
 	private transient boolean stillFlat;
-	private transient MyStreamTokenizer ST;
+	private transient TermLexer ST;
 	private transient HashMap<String,Integer> variables; /** Variable names and their numbers - order of the first occurrence */
+	/** Canonical text, kept while lazily inflated subterms remain to be parsed */
+	private transient char[] lazyText;
+	private transient int pendingSubterms = 0;
+	/** Whether backslash escapes in quoted atoms are interpreted, see AbstractPrologEngine.setInterpretEscapes */
+	private transient boolean escapes = false;
+	/** Iterates the elements of a term list file, see iterateTermList. Clients stopping before the end must close it,
+	to release the file and its mapping */
+	public interface TermListIterator extends Iterator<TermModel>, Closeable{
+		/** Releases the file; afterwards hasNext() is false. Done automatically after the last element or a parsing error */
+		public void close();
+	}
 		
 	public InitiallyFlatTermModel(Object n){
 		super(n);
@@ -39,66 +54,109 @@ public class InitiallyFlatTermModel extends TermModel{
 		super(n,c,isAList);
 	}
 	public static InitiallyFlatTermModel testFromString(String S){
+		return testFromString(S,false,false);
+	}
+	/** @param lazy see AbstractPrologEngine.setLazyInflation
+	 * @param escapes see AbstractPrologEngine.setInterpretEscapes */
+	public static InitiallyFlatTermModel testFromString(String S,boolean lazy,boolean escapes){
 		InitiallyFlatTermModel R = new InitiallyFlatTermModel();
-		R.canonicalTerm=S; R.stillFlat=true;
-		try{R.inflateFromString();} catch(IOException e){throw new RuntimeException ("??"+e);}
+		R.canonicalTerm=S; R.stillFlat=true; R.escapes=escapes;
+		try{R.inflateFromString(lazy);} catch(IOException e){throw new RuntimeException ("??"+e);}
 		return R;
 	}
 	/** Get a TermModel array previously written by Prolog with ipPutTermList(L,FilePath) */
 	public static TermModel[] getTermList(File F){
-		//long T0 = System.currentTimeMillis();
-		//long T1 = 0;
-		InitiallyFlatTermModel IFTM = new InitiallyFlatTermModel(".",null,true);
-		long Fsize = F.length();
-		if (Fsize>Integer.MAX_VALUE)
-			throw new IPException("Outrageous term size");
-		if (Fsize==0)
+		return getTermList(F,false);
+	}
+	/** @param escapes whether backslash escapes in quoted atoms are interpreted, see AbstractPrologEngine.setInterpretEscapes */
+	public static TermModel[] getTermList(File F,boolean escapes){
+		ArrayList<TermModel> terms = new ArrayList<TermModel>();
+		Iterator<TermModel> I = iterateTermList(F,Charset.defaultCharset(),escapes);
+		while (I.hasNext()) terms.add(I.next());
+		return terms.toArray(tmPrototype);
+	}
+	
+	/** Same as iterateTermList(F,Charset.defaultCharset(),false) */
+	public static TermListIterator iterateTermList(File F){
+		return iterateTermList(F,Charset.defaultCharset(),false);
+	}
+	
+	public static TermListIterator iterateTermList(File F,Charset charset){
+		return iterateTermList(F,charset,false);
+	}
+	
+	/** Lazily parses the elements of a list previously written by Prolog with ipPutTermList(L,FilePath). The file is read through a
+	MappedFileReader, so only the current element is in memory (plus the names of the variables seen so far); the file is closed 
+	after the last element, or on a parsing error; close the iterator to stop before that 
+	@param escapes whether backslash escapes in quoted atoms are interpreted, see AbstractPrologEngine.setInterpretEscapes */
+	public static TermListIterator iterateTermList(File F,Charset charset,boolean escapes){
+		if (F.length()==0)
 			throw new IPException("There is no term to get");
+		final InitiallyFlatTermModel IFTM = new InitiallyFlatTermModel(".",null,true);
+		IFTM.stillFlat=true;
+		IFTM.canonicalTerm = " reading term from "+F;
 		try{
-			byte[] buffer = new byte[(int)Fsize];
-			InputStream is = new FileInputStream(F); // Unicode / charset encoding issues here...and below
-			is.read(buffer,0,buffer.length);
-			is.close();
-			
-			IFTM.stillFlat=true;
-			
-			//T1=System.currentTimeMillis();
-			IFTM.canonicalTerm = " reading term from "+F;
-			// ByteArrayInputStream bais = new ByteArrayInputStream(buffer);
-			StringReader sr = new StringReader(escapeDoubledQuotes(new String(buffer))); 
-			
-			IFTM.inflateListFromStream(sr,(int)Fsize);
-			sr.close(); buffer=null;
-			//System.out.println("getTermList:"+ (System.currentTimeMillis()-T0));
-			//System.out.println("inflate only:"+ (System.currentTimeMillis()-T1));
-			return IFTM.children;
+			final Reader reader = new MappedFileReader(F,charset);
+			IFTM.ST = new TermLexer(reader,escapes);
+			IFTM.ST.setAtomTable(AtomTable.DEFAULT);
+			IFTM.prepareForInflate();
+			int NT = IFTM.ST.nextToken();
+			if (NT!=91 /*[*/) {
+				reader.close();
+				throw new IPException("Missing [ in "+IFTM.canonicalTerm);
+			}
+			final boolean empty = (IFTM.ST.nextToken()==93 /*]*/);
+			if (!empty) IFTM.ST.pushBack();
+			else reader.close();
+			return new TermListIterator(){
+				boolean atEnd = empty;
+				/** The reader was closed */
+				boolean closed = empty;
+				public boolean hasNext(){
+					return !atEnd;
+				}
+				public TermModel next(){
+					if (atEnd) throw new NoSuchElementException("No more terms in "+IFTM.canonicalTerm);
+					TermModel T = new TermModel();
+					try{
+						int NT = IFTM.parseTerm(IFTM.ST.nextToken(),T);
+						if (NT==93 /*]*/) {
+							atEnd = true;
+							if (IFTM.ST.nextToken()!=TermLexer.TT_EOF) 
+								throw new IPException("Extra garbage after ] in "+IFTM.canonicalTerm);
+							close();
+						} else if (NT==124 /*|*/) throw new IPException("Open tail lists not admissible here"); 
+						else if (NT!=44 /*,*/) throw new IPException("Missing ] in "+IFTM.canonicalTerm);
+					} catch (IOException ex){
+						close();
+						throw new IPException("Could not getTermList:"+ex);
+					} catch (IPException ex){
+						close();
+						throw ex;
+					}
+					return T;
+				}
+				public void close(){
+					atEnd = true;
+					if (closed) return;
+					closed = true;
+					IFTM.inflateWrapup();
+					try{ reader.close(); } catch (IOException ex){}
+				}
+				public void remove(){
+					throw new UnsupportedOperationException();
+				}
+			};
 		} catch (IOException ex){
 			throw new IPException("Could not getTermList:"+ex);
 		}		
 	}
 	
-	private void inflateListFromStream(Reader is,int size) throws IOException{
-		ST = new MyStreamTokenizer(is);
-		prepareForInflate();
-				
-		int NT = parseFlatList(ST.nextToken(),this,size);
-		if (NT!=StreamTokenizer.TT_EOF) 
-		throw new IPException("Extra garbage after "+NT+"in "+is);
-		inflateWrapup();
-	}
-	
 	private void prepareForInflate(){
 		//....parse and build tree... 
 		// Term=2+X+[1,2,3,4]+'Y'+zz3+'_bad',browseTerm(Term), buildInitiallyFlatTermModel(Term,_M) ,ipPrologEngine(_E),ipObjectSpec('IPClassObject',Class,['com.declarativa.interprolog.gui.TermModelWindow'],_),javaMessage(Class,_,null,'TermModelWindow',[_M,_E],0,_).
 		// System.out.println("canonicalTerm:"+canonicalTerm);
 		variables = new HashMap<String,Integer>();
-		ST.wordChars(95,95); // "_" can be in words
-		ST.wordChars(36,36); // "$" can be in words
-		ST.wordChars(42,43); 
-		ST.wordChars(45,45); 
-		ST.wordChars(47,47); 
-		ST.wordChars(58,58); 
-		ST.wordChars(61,61); 
 	}
 	
 	private void inflateWrapup(){
@@ -106,142 +164,228 @@ public class InitiallyFlatTermModel extends TermModel{
 		canonicalTerm=null;
 	}
 	
-	/** build this term's tree (children, node and hasListFunctor fields) by parsing its string representation in canonicalTerm  */
-	private void inflateFromString() throws IOException{
+	/** build this term's tree (children, node and hasListFunctor fields) by parsing its string representation in canonicalTerm  
+	@param lazy whether to build only the first level, see AbstractPrologEngine.setLazyInflation */
+	private void inflateFromString(boolean lazy) throws IOException{
 		if (!stillFlat) return;
 		if (canonicalTerm==null) throw new IPException("Inconsistent canonicalTerm");
-		ST = new MyStreamTokenizer(new StringReader(escapeDoubledQuotes(canonicalTerm)));
+		if (lazy) {
+			inflateLazily();
+			return;
+		}
+		ST = new TermLexer(canonicalTerm,escapes);
+		ST.setAtomTable(AtomTable.DEFAULT);
 		prepareForInflate();
-		//System.out.println("escapeDoubledQuotes(canonicalTerm):"+escapeDoubledQuotes(canonicalTerm));
 		int NT = parseTerm(ST.nextToken(),this);
-		if (NT!=StreamTokenizer.TT_EOF) 
+		if (NT!=TermLexer.TT_EOF) 
 		throw new IPException("Extra garbage after "+NT+"in "+canonicalTerm);
 		inflateWrapup();
 	}
-	/** transforms quoted doubled quotes - '' - into single quotes represented as an octal escape*/
-	static private String escapeDoubledQuotes(String S){
-		StringBuffer result = new StringBuffer();
-		int L = S.length();
-		boolean unquoted=true;
-		int i=0;
-		try{
-			while(i<L){
-				if (unquoted){
-					if (S.charAt(i)=='\'' && i<L-2 && S.charAt(i+1)=='\'' && S.charAt(i+2)=='\'') {
-						unquoted=false;
-						result.append(S.charAt(i)); i++;
-					} else if (S.charAt(i)=='\'' && i<L-1 && S.charAt(i+1)=='\'') {
-						result.append("''"); i=i+2;
-					} else {
-						if (S.charAt(i)=='\'') unquoted=false;
-						result.append(S.charAt(i)); i++;
-					} 
+	/** builds only node, hasListFunctor and the (uninflated) children */
+	private void inflateLazily() throws IOException{
+		lazyText = canonicalTerm.toCharArray();
+		variables = new HashMap<String,Integer>();
+		TermModel T = lazyTerm(0,lazyText.length);
+		node = T.node; hasListFunctor = T.hasListFunctor;
+		children = T.getChildren();
+		if (pendingSubterms==0) lazyInflationDone();
+		inflateWrapup();
+	}
+	
+	/** A subterm of lazyText, with its children still to be parsed unless it's atomic */
+	private TermModel lazyTerm(int start,int end) throws IOException{
+		while (start<end && Character.isWhitespace(lazyText[start])) start++;
+		while (end>start && Character.isWhitespace(lazyText[end-1])) end--;
+		if (start==end) throw new IPException("Missing term in "+new String(lazyText));
+		if (lazyText[start]=='['){
+			if (lazyText[end-1]!=']') throw new IPException("Missing ] in "+new String(lazyText));
+			int first = start+1;
+			while (first<end-1 && Character.isWhitespace(lazyText[first])) first++;
+			if (first==end-1) return new TermModel("[]",true);
+			return new LazyTermModel(this,splitArguments(start+1,end-1,true),0);
+		} 
+		int open = findOpeningParenthesis(start,end);
+		if (open==-1) {
+			TermModel T = new TermModel();
+			parseSpan(start,end,T);
+			return T;
+		}
+		if (lazyText[end-1]!=')') throw new IPException("Missing ) in "+new String(lazyText));
+		TermModel T = new LazyTermModel(this,open+1,end-1);
+		parseSpan(start,open,T);
+		if (T.node.equals(".") || T.node.equals("[|]")) // must know whether it has 2 arguments
+			T.hasListFunctor = (T.getChildCount()==2);
+		return T;
+	}
+	
+	private void lazyInflationDone(){
+		lazyText = null; variables = null; ST = null;
+	}
+	
+	private void parseSpan(int start,int end,TermModel T) throws IOException{
+		ST = new TermLexer(lazyText,start,end,escapes);
+		ST.setAtomTable(AtomTable.DEFAULT);
+		int NT = parseTerm(ST.nextToken(),T);
+		if (NT!=TermLexer.TT_EOF) 
+			throw new IPException("Extra garbage after "+NT+"in "+new String(lazyText,start,end-start));
+	}
+	
+	/** Index of the first ( outside quotes, or -1 */
+	private int findOpeningParenthesis(int start,int end){
+		for (int i=start; i<end; i++){
+			char C = lazyText[i];
+			if (C=='\'' || C=='"' || C=='`') i = skipQuoted(i,end);
+			else if (C=='(') return i;
+		}
+		return -1;
+	}
+	
+	private int skipQuoted(int i,int end){
+		int close = TermLexer.closingQuote(lazyText,i,end,escapes);
+		if (close==-1) throw new IPException("Missing closing quote in "+new String(lazyText));
+		return close;
+	}
+	
+	/** Positions of the commas separating the top level arguments in the text between start and end, preceded by start-1 and followed by end */
+	private int[] splitArguments(int start,int end,boolean inList){
+		int[] bounds = new int[8];
+		int n = 0;
+		bounds[n++] = start-1;
+		int depth = 0;
+		for (int i=start; i<end; i++){
+			char C = lazyText[i];
+			if (C=='\'' || C=='"' || C=='`') i = skipQuoted(i,end);
+			else if (C=='(' || C=='[') depth++;
+			else if (C==')' || C==']') depth--;
+			else if (depth==0 && C==','){
+				if (n==bounds.length-1) bounds = Arrays.copyOf(bounds,bounds.length*2);
+				bounds[n++] = i;
+			} else if (depth==0 && C=='|' && inList) 
+				throw new IPException("Open tail lists not admissible here:"+new String(lazyText));
+		}
+		if (n==bounds.length) bounds = Arrays.copyOf(bounds,n+1);
+		bounds[n++] = end;
+		return Arrays.copyOf(bounds,n);
+	}
+	
+	/** A term whose children are parsed from the text of its source only when first needed; 
+	it is serialized as a plain TermModel. All subterms of a received term share its lexer and variable table, 
+	so they parse while locking the source; may be read by several threads */
+	static class LazyTermModel extends TermModel{
+		private static final long serialVersionUID = 1L;
+		/** null once the children are built */
+		transient volatile InitiallyFlatTermModel source;
+		/** arguments text span, or list element bounds as returned by splitArguments */
+		transient int start, end;
+		transient int[] listBounds;
+		/** first list element in this list (tail) */
+		transient int listIndex;
+		
+		LazyTermModel(InitiallyFlatTermModel source,int start,int end){
+			this.source = source; source.pendingSubterms++;
+			this.start = start; this.end = end;
+		}
+		LazyTermModel(InitiallyFlatTermModel source,int[] listBounds,int listIndex){
+			super(LIST_FUNCTOR,true);
+			this.source = source; source.pendingSubterms++;
+			this.listBounds = listBounds; this.listIndex = listIndex;
+		}
+		protected void inflateChildren(){
+			InitiallyFlatTermModel S = source;
+			if (S==null) return;
+			synchronized(S){
+				if (source==null) return; // inflated meanwhile by another thread
+				parseChildren();
+				detach();
+			}
+		}
+		private void parseChildren(){
+			try{
+				if (listBounds!=null){
+					TermModel head = source.lazyTerm(listBounds[listIndex]+1,listBounds[listIndex+1]);
+					TermModel tail;
+					if (listIndex+2<listBounds.length) tail = new LazyTermModel(source,listBounds,listIndex+1);
+					else tail = new TermModel("[]",true);
+					children = new TermModel[]{head,tail};
 				} else {
-					if (S.charAt(i)=='\'' && i<L-1 && S.charAt(i+1)=='\'') {
-						result.append("\\"); result.append("47"); // doubled quote: ' escape in octal 
-						i=i+2;
-					} else {
-						if (S.charAt(i)=='\'') unquoted=true;
-						result.append(S.charAt(i)); i++;
-					} 				
+					int[] bounds = source.splitArguments(start,end,false);
+					children = new TermModel[bounds.length-1];
+					for (int c=0; c<children.length; c++)
+						children[c] = source.lazyTerm(bounds[c]+1,bounds[c+1]);
 				}
+			} catch (IOException e){
+				throw new IPException("Could not inflate term:"+e);
 			}
-		} catch(IndexOutOfBoundsException e){
-			throw new IPException("bad quotes in string");
 		}
-		return result.toString();
+		/** Forgets the text of the children, which no longer need parsing; call while locking source */
+		private void detach(){
+			if (--source.pendingSubterms==0) source.lazyInflationDone();
+			listBounds = null;
+			source = null; // last, publishing the children
+		}
+		/** The new children replace those still to be parsed */
+		public void setChildren(TermModel[] c){
+			InitiallyFlatTermModel S = source;
+			if (S!=null) 
+				synchronized(S){
+					if (source!=null) detach();
+				}
+			super.setChildren(c);
+		}
+		private Object writeReplace(){
+			return new TermModel(node,getChildren(),hasListFunctor);
+		}
 	}
 	
 	@SuppressWarnings("unused")
 	/** for testing */
 	private void dump(int NT) throws IOException{
 		System.out.println("Dumping term tokens. canonicalTerm:"+canonicalTerm);
-		while(NT!=StreamTokenizer.TT_EOF){
-			//System.out.println("NT="+NT+" Type="+ST.ttype + " string:"+ST.sval+" number:"+ST.nval);
-			if (NT==StreamTokenizer.TT_NUMBER){
+		while(NT!=TermLexer.TT_EOF){
+			if (NT==TermLexer.TT_INTEGER || NT==TermLexer.TT_FLOAT)
 				System.out.println(ST.nval);
-			} else if (NT==StreamTokenizer.TT_WORD && ST.sval.startsWith("_"))
+			else if (NT==TermLexer.TT_VARIABLE)
 				System.out.println("Variable:"+ST.sval);
-			else if (NT==39 && ST.sval.equals(".") ) 
-				System.out.println("list operator");
-			else if (NT==StreamTokenizer.TT_WORD || NT==39 /* ' */ ) 
+			else if (NT==TermLexer.TT_ATOM || NT==TermLexer.TT_QUOTED || NT==TermLexer.TT_STRING) 
 				System.out.println("Atom:"+ST.sval);
-			else if (NT==91){
-				int NT2 = ST.nextToken();
-				if (NT2==93) System.out.println("[]");
-				else ST.pushBack();
-			}
-			else if (NT==44 /* , */)
-				System.out.println(",");
-			else if (NT==41)
-				System.out.println(")");
-			else if (NT==40)
-				System.out.println("(");
-			else throw new IPException("Unexpected char in "+canonicalTerm+":"+NT);
+			else System.out.println((char)NT);
 			NT = ST.nextToken();
 		}
 		System.out.println("---end of dump");
 	}
 	
 	private int parseTerm(int NT,TermModel term /* node and children null */) throws IOException{
-		boolean consumedSecond = false;	
-		if (NT==StreamTokenizer.TT_NUMBER){
-			// if ((int)ST.nval == ST.nval) term.node = new Integer((int)ST.nval);
-			if (!ST.containsDot()) term.node = new Integer((int)ST.nval);
-			else term.node = new Double(ST.nval);
-			if (term.node instanceof Double){ // hack to parse exponent
-				NT = ST.nextToken(); consumedSecond = true;
-				if (NT==StreamTokenizer.TT_WORD && ST.sval.startsWith("E")){
-					term.node = Double.valueOf(term.node+ST.sval);
-					NT = ST.nextToken(); 
-				}
-			}
-		} else if (NT==StreamTokenizer.TT_WORD && ST.sval.startsWith("_"))
+		if (NT==TermLexer.TT_INTEGER || NT==TermLexer.TT_FLOAT)
+			term.node = ST.nval;
+		else if (NT==TermLexer.TT_VARIABLE)
 			term.node = new VariableNode(lookupVariable(ST.sval)); 
-		else if (NT==StreamTokenizer.TT_WORD || NT==39 /* ' */ ) 
-			term.node = ST.sval.intern(); // avoid proliferation of Strings
-		// special cases for SWI, so it can use the 4 basic arith operators; see also prepareForInflate()
-		else if (NT==43)
-			term.node="+";
-		else if (NT==45)
-			term.node="-";
-		else if (NT==42)
-			term.node="*";
-		else if (NT==47)
-			term.node="/";
-		else if (NT==61)
-			term.node="=";
-		else if (NT==58)
-			term.node=":";
-		else if (NT==39 && ST.sval.equals(".") ) 
-			term.node="."; // list functor...
-		else if (NT==91){ // [ 
+		else if (NT==TermLexer.TT_ATOM || NT==TermLexer.TT_QUOTED || NT==TermLexer.TT_STRING) 
+			term.node = ST.sval; // canonical, avoiding the proliferation of Strings
+		else if (NT=='['){ 
 			int NT2 = ST.nextToken();
-			if (NT2==93) term.node="[]";
+			if (NT2==']') term.node="[]";
 			else { 
-				// list starting... this could be refactored with parseFlatList
+				// list starting...
 				term.node="."; term.hasListFunctor=true; 
 				ArrayList<TermModel> listItems = new ArrayList<TermModel>();
 				NT = parseTermArgs(NT2, listItems);
-				if (NT==124 /*|*/) throw new IPException("Open tail lists not admissible here:"+canonicalTerm); 
-				// term.children = listItems.toArray(new TermModel[0]);
+				if (NT=='|') throw new IPException("Open tail lists not admissible here:"+canonicalTerm); 
 				term.children = TermModel.makeList(listItems).children;
-				if (NT!=93 /*]*/) throw new IPException("Missing ] in "+canonicalTerm);
+				if (NT!=']') throw new IPException("Missing ] in "+canonicalTerm);
 				return ST.nextToken(); // list can not be a functor for a larger term...
 			}
 		}
-		else throw new IPException("Unexpected char in "+canonicalTerm+":"+NT);
-		if (!consumedSecond) NT = ST.nextToken();
-		if (NT==40 /* ( */) {
+		else throw new IPException("Unexpected token in "+canonicalTerm+":"+NT);
+		NT = ST.nextToken();
+		if (NT=='(') {
 			ArrayList<TermModel> args = new ArrayList<TermModel>(8); // tuning here...
 			NT = parseTermArgs(ST.nextToken(), args);
 			term.children = args.toArray(tmPrototype);
-			if (NT==41 /* ) */) {
+			if (NT==')') {
 				if (term.node.equals(".")&&term.getChildCount()==2)
 					term.hasListFunctor=true;
 				return ST.nextToken();
 			} else {
-				//ST.dump(60);
 				throw new IPException("Missing ) in "+canonicalTerm+", found token "+NT+" instead");
 			}
 		} else {
@@ -251,30 +395,11 @@ public class InitiallyFlatTermModel extends TermModel{
 	}
 	static final TermModel[] tmPrototype = new TermModel[0];
 	
-	private int parseFlatList(int NT,TermModel term,int size) throws IOException{
-		if (NT==91){ // [ 
-			int NT2 = ST.nextToken();
-			if (NT2==93) {
-				term.node="[]";
-				return ST.nextToken();
-			} else { 
-				// list starting...
-				term.node="."; term.hasListFunctor=true; 
-				ArrayList<TermModel> listItems = new ArrayList<TermModel>(size/100); // Tuning here for term size...
-				NT = parseTermArgs(NT2, listItems);
-				if (NT==124 /*|*/) throw new IPException("Open tail lists not admissible here"); 
-				term.children = listItems.toArray(tmPrototype);
-				if (NT!=93 /*]*/) throw new IPException("Missing ] in "+canonicalTerm);
-				return ST.nextToken(); // list can not be a functor for a larger term...
-			}
-		} else throw new IPException("Missing [ in "+canonicalTerm); 
-	}
-
 	private int parseTermArgs(int NT,ArrayList<TermModel> args) throws IOException{
 		TermModel arg = new TermModel(); 
 		args.add(arg);
 		NT = parseTerm(NT,arg);
-		while (NT==44 /* , */) {
+		while (NT==',') {
 			arg = new TermModel(); args.add(arg);
 			NT = parseTerm(ST.nextToken(),arg);
 		};		
@@ -290,11 +415,18 @@ public class InitiallyFlatTermModel extends TermModel{
 		return i.intValue();
 	}
 	
-	/** hack to parse the term and build the TermModel tree after unserializing this object */
+	/** hack to parse the term and build the TermModel tree after unserializing this object; 
+	parsing follows the options of the engine it came from, if known */
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
 		in.defaultReadObject(); // why not ... super.readObject...??
 		stillFlat=true; // hack
-		inflateFromString();
+		boolean lazy = false;
+		if (in instanceof PrologInputObjectStream){
+			AbstractPrologEngine engine = ((PrologInputObjectStream)in).getEngine();
+			lazy = engine.isLazyInflation();
+			escapes = engine.isInterpretingEscapes();
+		}
+		inflateFromString(lazy);
 	}
 
 	/** rebuilds field canonicalTerm and nullifies node and children, so that the term looses its tree and
@@ -77,7 +77,7 @@ public class OnTopSubprocessEngine extends SubprocessEngine {
 	 */
 	@Override
 	public boolean isAvailable() {
-		return !constructed || messagesExecuting.size()!=0;
+		return !constructed || !messagesExecuting.isEmpty();
 	}
 
 	protected synchronized boolean canAcceptNewGoal(Thread thread){
@@ -118,7 +118,7 @@ public class OnTopSubprocessEngine extends SubprocessEngine {
 			fos2.close();
 	
 			engine.progressMessage("Waiting for the socket to accept...");
-			engine.socket = engine.serverSocket.accept();
+			engine.acceptObjectSocket();
 			
 			// Let's simulate engine.deterministicGoal("dummyGoal") running, thus javaMessage ready
 	    	engine.topGoalHasStarted = true;
@@ -124,6 +124,8 @@ public interface PrologEngine{
 	 */
     public SolutionIterator goal(String G, String OVar, Object[] objectsP, String RVars);
     public SolutionIterator goal(String G, String RVars);
+    /** Same as goal(G,OVar,objectsP,RVars), but Prolog may compute up to prefetch solutions ahead of their consumption */
+    public SolutionIterator goal(String G, String OVar, Object[] objectsP, String RVars, int prefetch);
     
     public boolean lastSolutionUndefined();
 
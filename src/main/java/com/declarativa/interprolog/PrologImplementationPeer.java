@@ -65,4 +65,8 @@ public abstract class PrologImplementationPeer{
 		return p;
 	}
 	public PrologOperatorsContext getOperators(){return operators;}
+	/** True if interprolog.P can connect to Java through a Unix domain socket, cf. ipinitsockets(unix(Path),_) */
+	public boolean supportsUnixDomainSockets(){
+		return false;
+	}
 }
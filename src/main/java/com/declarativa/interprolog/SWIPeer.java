@@ -97,6 +97,9 @@ public class SWIPeer extends PrologImplementationPeer{
 	public boolean isInterrupt(Object error){
 		return error.toString().equals("interprolog_interrupt");
 	}
+	public boolean supportsUnixDomainSockets(){
+		return true;
+	}
 	@Override
     public String getBinDirectoryEnvVar(){
     	return "SWI_BIN_DIRECTORY";
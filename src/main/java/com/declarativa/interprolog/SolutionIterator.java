@@ -7,36 +7,66 @@ Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
 */
 
 package com.declarativa.interprolog;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 import com.declarativa.interprolog.util.IPException;
 import com.declarativa.interprolog.util.IPPrologError;
 
-/** An Iterator object that actually evaluates a goal and collects its solutions incrementally. Performance could probably be improved 
-by using wait/notify rather than plain Thread.yield() */
+/** An Iterator object that actually evaluates a goal and collects its solutions incrementally. 
+Solutions are handed over from the Prolog execution thread through a small bounded buffer; both sides block (wait/notify) rather than spin. 
+By default Prolog computes the next solution only after the previous one was consumed; a prefetch depth allows it to compute solutions ahead. */
 public class SolutionIterator implements Iterator<Object[]>{
 	AbstractPrologEngine engine;
 	String G; String OVar; Object[] objectsP; String RVars;
+	/** Maximum number of solutions Prolog may keep computed ahead of the consumer */
+	final int prefetch;
 	Thread prologExecution = null;
-	boolean cancellationRequested = false;
-	boolean cancelled = false;
-	boolean foundAllSolutions = false;
-	Object[] lastSolution = null;
-	Object lastError = null;
-	boolean lastUndefined = false;
+	volatile boolean cancellationRequested = false;
+	volatile boolean cancelled = false;
+	volatile boolean foundAllSolutions = false;
+	/** Solutions (or errors) recorded by Prolog but not yet consumed; guarded by this */
+	private final ArrayDeque<Solution> solutions = new ArrayDeque<Solution>();
+	/** The Prolog execution thread died with this */
+	private Throwable executionProblem = null;
+	volatile boolean lastUndefined = false;
+	
+	private static class Solution{
+		final Object[] bindings; final Object error; final boolean undefined;
+		Solution(Object[] bindings, Object error, boolean undefined){
+			this.bindings=bindings; this.error=error; this.undefined=undefined;
+		}
+	}
 	
 	SolutionIterator(AbstractPrologEngine engine,String G, String OVar, Object[] objectsP, String RVars){
+		this(engine,G,OVar,objectsP,RVars,0);
+	}
+	
+	/** @param prefetch how many solutions Prolog may compute ahead of the consumer; 0 means one at a time */
+	SolutionIterator(AbstractPrologEngine engine,String G, String OVar, Object[] objectsP, String RVars, int prefetch){
+		if (prefetch<0) throw new IPException("Bad prefetch depth: "+prefetch);
 		this.engine = engine;
 		this.G=G; this.OVar=OVar; this.objectsP=objectsP; this.RVars=RVars;
+		this.prefetch = prefetch;
 	}
-	public boolean hasNext(){
+	public synchronized boolean hasNext(){
 		if (cancellationRequested) throw new NoSuchElementException("Cancelled any remaining solutions of "+G);
 		execute();
-		while (lastSolution==null && lastError==null && !foundAllSolutions)
-			Thread.yield(); //N3 or N1
-		if (foundAllSolutions) engine.nonDeterministicGoalActive = false;
-		return lastSolution!=null || lastError!=null;
+		waitForSolution();
+		if (foundAllSolutions && solutions.isEmpty()) engine.nonDeterministicGoalActive = false;
+		return !solutions.isEmpty();
+	}
+	/** Blocks until there's a solution to consume or the Prolog execution ended; caller must own our monitor */
+	private void waitForSolution(){
+		try{
+			while (solutions.isEmpty() && !foundAllSolutions && !cancelled && executionProblem==null)
+				wait();
+		} catch (InterruptedException e){
+			throw new IPException("Bad interrupt: "+e); 
+		}
+		if (solutions.isEmpty() && executionProblem!=null)
+			throw new IPException("Problem in non deterministic goal:"+executionProblem);
 	}
 	/** Makes sure the Prolog goal evaluation has started */
 	private void execute(){
@@ -50,15 +80,21 @@ public class SolutionIterator implements Iterator<Object[]>{
 						"checkUndefined(_IP_U,_IP_Uint), ipObjectSpec('boolean',_IP_U_model,[_IP_Uint],_)," +
 						"javaMessage("+engine.registerJavaObject(SolutionIterator.this)+",_IP_R,recordSolution(_IP_Bindings,_IP_Error2,_IP_U_model)), " +
 						"ipObjectSpec('java.lang.Boolean',_IP_R,[0],_) "; // 0/false means cancel the goal execution
-						lastSolution = null; lastError = null;
-						if (engine.deterministicGoal(goal, OVar,objectsP))
-							cancelled = true;
-						else 
-							foundAllSolutions = true;
-						// prologExecution.notifyAll(); // N1
+						boolean wasCancelled = engine.deterministicGoal(goal, OVar,objectsP);
+						synchronized(SolutionIterator.this){
+							if (wasCancelled)
+								cancelled = true;
+							else 
+								foundAllSolutions = true;
+							SolutionIterator.this.notifyAll();
+						}
 						engine.nonDeterministicGoalActive = false;
 						
 					} catch (Throwable T){
+						synchronized(SolutionIterator.this){
+							executionProblem = T;
+							SolutionIterator.this.notifyAll();
+						}
 						throw new IPException("Problem in non deterministic goal:"+T);
 					}
 				}
@@ -67,30 +103,29 @@ public class SolutionIterator implements Iterator<Object[]>{
 			prologExecution.start();
 		}
 	}
-	/** This will messaged by Prolog. Returns false to it if we wish to cancel */
-	public boolean recordSolution(Object[] bindings, Object error, boolean undefined){
-		lastSolution = bindings; lastUndefined=undefined;
-		if (error!=null) lastError = error;
-		// prologExecution.notifyAll(); // N3
-		while((lastSolution!=null || lastError!=null) && !cancellationRequested)
-			Thread.yield(); // N2 or N4
+	/** This will messaged by Prolog. Blocks while the consumer is more than prefetch solutions behind. Returns false to it if we wish to cancel */
+	public synchronized boolean recordSolution(Object[] bindings, Object error, boolean undefined){
+		solutions.addLast(new Solution(bindings,error,undefined));
+		notifyAll();
+		try{
+			while(solutions.size()>prefetch && !cancellationRequested)
+				wait();
+		} catch (InterruptedException e){
+			throw new IPException("Bad interrupt: "+e); 
+		}
 		return !cancellationRequested;
 	}
-	public Object[] next(){
+	public synchronized Object[] next(){
 		if (cancellationRequested) throw new NoSuchElementException("Cancelled any remaining solutions of "+G);
 		execute();
-		while(lastSolution==null && lastError==null && !foundAllSolutions)
-			Thread.yield();	// N3 or N1	
-		if (lastError!=null){
-			Object temp = lastError;
-			lastError = null; lastSolution=null;
-			throw new IPPrologError(temp);
-		}
-		if (lastSolution==null) throw new NoSuchElementException("No more solutions for "+G);
-		Object[] temp = lastSolution;
-		lastSolution = null; lastError = null;
-		// prologExecution.notifyAll(); // N2
-		return temp; 
+		waitForSolution();
+		Solution S = solutions.pollFirst();
+		if (S==null) throw new NoSuchElementException("No more solutions for "+G);
+		notifyAll(); // Prolog may now compute more
+		lastUndefined = S.undefined;
+		if (S.error!=null)
+			throw new IPPrologError(S.error);
+		return S.bindings; 
 	}
 	
 	public boolean lastSolutionUndefined(){
@@ -101,15 +136,17 @@ public class SolutionIterator implements Iterator<Object[]>{
 		throw new UnsupportedOperationException("Can't remove a solution from its iterator");
 	}
 	/** terminates the non deterministic goal that returned this iterator, without finding more solutions */
-	public void cancel(){
+	public synchronized void cancel(){
 		cancellationRequested = true;
-		//prologExecution.notifyAll(); // N4
-		while (!cancelled&&!foundAllSolutions)
-			Thread.yield();	// N1
+		notifyAll();
+		try{
+			if (prologExecution!=null)
+				while (!cancelled && !foundAllSolutions && executionProblem==null)
+					wait();
+		} catch (InterruptedException e){
+			throw new IPException("Bad interrupt: "+e); 
+		}
 		engine.nonDeterministicGoalActive = false;
-		lastSolution=null; lastError=null;
-			/*
-			try{ prologExecution.yield();	// N1
-			} catch (InterruptedException e) {throw new IPException("Bad interrupt");} */
+		solutions.clear();
 	}
-}
\ No newline at end of file
+}
@@ -10,6 +10,8 @@ import com.declarativa.interprolog.util.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.lang.reflect.*;
@@ -22,22 +24,66 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
     private static final String STDOUT = "stdout";
     private static final String STDERR = "stderr";
     protected boolean outAndErrMerged;
-    private boolean engineStarted = false;
+    private volatile boolean engineStarted = false;
     Process prolog;
+    /** Waits for the Prolog process to end, so that threads waiting for the engine learn about it */
+    protected Thread processWatcher = null;
+    /** The Prolog process ended, with processExitValue */
+    protected volatile boolean processExited = false;
+    protected volatile int processExitValue;
     protected PrintWriter prologStdin;
     protected OutputHandler stdoutHandler, stderrHandler; // stderrHandler will be null if outAndErrMerged==true
+    /** null if using a Unix domain socket */
     protected ServerSocket serverSocket;
-    /** THE socket used for object streaming to/from Prolog */
+    /** THE socket used for object streaming to/from Prolog; null if using a Unix domain socket, see channel */
     protected Socket socket;
+    protected ServerSocketChannel serverChannel = null;
+    /** The channel for object streaming, or null if the socket has none */
+    protected SocketChannel channel = null;
+    /** Whether new engines for Prologs supporting it use a Unix domain socket, in the engine's temp directory, instead of TCP;
+    requires Java 16 or later and a non Windows OS. Interrupts are still sent as signals. 
+    The socket is a channel, so the caveat in channelTransportByDefault about interrupted Java threads applies */
+    public static boolean unixSocketsByDefault = false;
+    protected boolean unixSockets = unixSocketsByDefault;
+    /** The Unix domain socket file, if any */
+    protected File socketFile = null;
     ServerSocket intServerSocket=null; protected Socket intSocket=null; // Used only for a particular way of interrupting Prolog
     String interruptCommand=null; // Used only for UNIX
     Vector<ClientRecognizer> listeners = new Vector<ClientRecognizer>();
-    protected boolean available;
+    protected volatile boolean available;
     Recognizer promptTrigger = peer.makePromptRecognizer();
     Recognizer breakTrigger = peer.makeBreakRecognizer();
     protected Recognizer errorTrigger = new Recognizer("++Error",true); // was "++Error: " for XSB 2.4
     boolean slowWindowsShutdown = false;
     protected boolean mustUseSocketInterrupt = false;
+    /** Goals from deterministicGoalAsync waiting for the engine to become idle */
+    protected final LinkedList<GoalToExecute> pendingAsyncGoals = new LinkedList<GoalToExecute>();
+    /** Availability before the asynchronous first goal currently executing was sent */
+    private boolean asyncWasAvailable;
+    private RecognizerListener asyncErrorHandler = null;
+    /** Whether new engines use session streams, see startSessionStreams() */
+    public static boolean sessionStreamsByDefault = false;
+    /** Java resets its session output stream every this many messages. With 1, the default, each Java -> Prolog message is serialized 
+    on its own, class descriptors included, and only saves the 4 byte stream header. 
+    Larger values also share class descriptors and strings between messages, but then so are all other objects: 
+    an object sent again within the interval goes as a reference to the first copy, so Prolog will not see any changes made to it meanwhile. 
+    Use larger values only if objects sent to Prolog are never mutated and resent */
+    public static int SESSION_RESET_INTERVAL = 1;
+    /** Prolog -> Java messages belong to the same serialization stream */
+    protected volatile boolean sessionStreams = false;
+    private ObjectInputStream sessionInput = null;
+    /** Non null when Java -> Prolog messages belong to the same serialization stream */
+    private volatile PrologOutputObjectStream sessionOutput = null;
+    private int sessionMessagesSent = 0;
+    /** Whether new engines exchange objects with Prolog through a SocketChannel and reusable direct buffers, 
+    rather than the socket's streams; see ChannelOutputStream. False by default: channels are interruptible, so interrupting a Java thread 
+    while it is blocked writing to or reading from Prolog closes the channel, and with it the engine. Use only if client threads are never interrupted.
+    Unix domain sockets (see unixSocketsByDefault) always use a channel */
+    public static boolean channelTransportByDefault = false;
+    protected boolean channelTransport = channelTransportByDefault;
+    private final Object channelLock = new Object();
+    private ChannelOutputStream channelOutput = null;
+    private ChannelInputStream channelInput = null;
 
     protected RecognizerListener availableSetter = new RecognizerListener(){
             public void recognized(Recognizer source,Object extra,String originStd){
@@ -255,6 +301,7 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
             }
 
             prolog = createProcess(prologCommands);
+            watchProcess();
             // No explicit buffering, because it's already being done by our Process's streams
             // If not, OutputHandler will handle the issue
             stdoutHandler = new OutputHandler(prolog.getInputStream(),(debug?System.err:null),STDOUT);
@@ -273,13 +320,12 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
             initSubprocessSocket();
 			
             // waitUntilAvailable(); // Hangs Yap
-            command("ipinitialize('"+clientHostname()+"',"+
-                    serverSocket.getLocalPort()+","+
+            command("ipinitialize("+objectSocketAddress()+","+
                     registerJavaObject(this)+","+
                     debug +
                     ")");
             progressMessage("Waiting for the socket to accept...");
-            socket = serverSocket.accept();
+            acceptObjectSocket();
 			
             initSubprocess2();
             initSubprocess3();
@@ -291,16 +337,49 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
     }
 
     protected void initSubprocessSocket() throws IOException {
+        if (isUsingUnixSocket()){
+            socketFile = new File(tempDirectory,"ipsocket");
+            progressMessage("Allocating the Unix domain socket "+socketFile);
+            serverChannel = UnixSockets.openServer(socketFile);
+            socketFile.deleteOnExit();
+            return;
+        }
         progressMessage("Allocating the ServerSocket...");
-        serverSocket = new ServerSocket(0); // let the system pick a port
+        if (channelTransport){
+            serverChannel = ServerSocketChannel.open();
+            serverSocket = serverChannel.socket(); // accept() will return sockets with a channel
+            serverSocket.bind(new InetSocketAddress(0));
+        } else serverSocket = new ServerSocket(0); // let the system pick a port
         progressMessage("server port: "+serverSocket.getLocalPort());
         // this does not seem to help with frequent failures on Windows
         //serverSocket.setSoTimeout(60000);   // wait for response for 1 min
     }
 
+    /** Whether the object channel is, or will be, a Unix domain socket */
+    public boolean isUsingUnixSocket(){
+        if (socketFile!=null) return true;
+        if (serverSocket!=null) return false;
+        return unixSockets && peer.supportsUnixDomainSockets() && UnixSockets.isUsablePath(new File(tempDirectory,"ipsocket"));
+    }
+	
+    /** The first two arguments of ipinitialize/4: Host and Port, or unix(Path) and 0 */
+    protected String objectSocketAddress(){
+        if (socketFile!=null) return "unix('"+peer.unescapedFilePath(socketFile.getAbsolutePath())+"'),0";
+        else return "'"+clientHostname()+"',"+serverSocket.getLocalPort();
+    }
+	
+    /** Waits for Prolog to connect to the object socket */
+    protected void acceptObjectSocket() throws IOException {
+        if (serverSocket==null) channel = serverChannel.accept();
+        else {
+            socket = serverSocket.accept();
+            channel = socket.getChannel();
+        }
+    }
+	
     protected void initSubprocess2() throws IOException {
         progressMessage("Teaching examples to Prolog...");
-        PrologOutputObjectStream bootobjects = buildPrologOutputObjectStream(socket.getOutputStream());
+        PrologOutputObjectStream bootobjects = buildPrologOutputObjectStream(objectOutputStream());
         ObjectOutputStream oos = bootobjects.getObjectStream();
         teachIPobjects(oos);
         teachBasicObjects(oos); 
@@ -316,9 +395,39 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
         prepareInterrupt(clientHostname()); // OS-dependent Prolog interrupt generation, must be after the previous step
         waitUntilAvailable();            
         deterministicGoal("ipPrologEngine(_E), javaMessage(_E,setEngineStarted)");
-        while(!engineStarted && !isIdle()) Thread.yield();
+        while(true){
+            long V = stateVersion();
+            if (engineStarted || isIdle()) break;
+            awaitStateChange(V);
+        }
         //sendAndFlushLn("");
         waitUntilAvailable();
+        if (sessionStreamsByDefault) startSessionStreams();
+    }
+	
+    /** Switches the object socket to a single serialization stream per direction, for the remainder of this engine's life. 
+    Stream headers are no longer sent with each message. Prolog -> Java messages also refer by handle to the class descriptors and strings 
+    sent before, so they get smaller and cheaper to produce and parse; Prolog resets its stream beyond ipSessionMaxHandles handles. 
+    Java -> Prolog messages gain little by default: Java resets its stream before every message, 
+    so class descriptors are sent again each time, see SESSION_RESET_INTERVAL. Requires an idle engine. */
+    public void startSessionStreams(){
+        if (sessionStreams) return;
+        if (!isIdle()) throw new IPException("startSessionStreams requires an idle engine");
+        // The result of this goal is the first message of Prolog's session stream:
+        sessionStreams = true;
+        if (!deterministicGoal("ipStartSessionStreams")) {
+            sessionStreams = false;
+            throw new IPException("Prolog could not start session streams");
+        }
+        try{
+            sessionOutput = buildSessionOutputObjectStream(objectOutputStream());
+        } catch (IOException e){
+            throw new IPException("Could not start session streams:"+e);
+        }
+    }
+	
+    public boolean isUsingSessionStreams(){
+        return sessionOutput!=null;
     }
 	
     protected void postCreateHack(String[] prologCommands){}
@@ -329,13 +438,37 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
 	
     public void setEngineStarted(){
         engineStarted = true;
+        stateChanged();
         progressMessage("setEngineStarted!");
     }
 	
+    /** Where objects for Prolog are written: a ChannelOutputStream if there's a channel, otherwise the socket's stream */
+    protected OutputStream objectOutputStream() throws IOException{
+        if (channel==null) return socket.getOutputStream();
+        synchronized(channelLock){
+            if (channelOutput==null) channelOutput = new ChannelOutputStream(channel);
+            return channelOutput;
+        }
+    }
+	
+    /** Where objects from Prolog are read: a ChannelInputStream if there's a channel, otherwise the socket's stream */
+    protected InputStream objectInputStream() throws IOException{
+        if (channel==null) return socket.getInputStream();
+        synchronized(channelLock){
+            if (channelInput==null) channelInput = new ChannelInputStream(channel);
+            return channelInput;
+        }
+    }
+	
     protected PrologOutputObjectStream buildPrologOutputObjectStream(OutputStream os) throws IOException{
         return new PrologOutputObjectStream(os);
     }
 	
+    /** Subclasses overriding buildPrologOutputObjectStream should override this accordingly */
+    protected PrologOutputObjectStream buildSessionOutputObjectStream(OutputStream os) throws IOException{
+        return new PrologOutputObjectStream(os,false,true);
+    }
+	
     protected Process createProcess(String[] prologCommands) throws IOException{
         progressMessage("Launching subprocess "+Arrays.toString(prologCommands));
         ProcessBuilder PB = new ProcessBuilder(prologCommands);
@@ -361,26 +494,31 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
      */
     @Override
     public void waitUntilAvailable() {
-        try{
-            int pollCounter = 0;
-            while(!isAvailable()) {
-            	pollCounter ++;
-                if (pollCounter > 1000 && prolog!=null){
-                    // let's not do "system" things too often...
-                    pollCounter = 0;
-                    try{
-                        int RC = prolog.exitValue();
-                        throw new IPException("SubprocessEngine process exited unexpectedly:"+RC);
-                    } catch(IllegalThreadStateException ex){
-                        // We're still good
-                    }
+        while(true){
+            long V = stateVersion();
+            if (isAvailable()) return;
+            if (processExited)
+                throw new IPException("SubprocessEngine process exited unexpectedly:"+processExitValue);
+            awaitStateChange(V);
+        }
+    }
+    
+    /** Starts the processWatcher thread */
+    protected void watchProcess(){
+        processWatcher = new Thread("Prolog process watcher"){
+            public void run(){
+                try{
+                    processExitValue = prolog.waitFor();
+                } catch (InterruptedException e){
+                    return;
                 }
-            	Thread.sleep(0,1); // articulate this with pollCounter above
+                processExited = true;
+                progressMessage("Prolog process exited with "+processExitValue);
+                stateChanged();
             }
-        } catch (InterruptedException e){
-            throw new IPException("Bad interrupt: "+e); 
-        }
-
+        };
+        processWatcher.setDaemon(true);
+        processWatcher.start();
     }
 
     protected void setupCallbackServer(){
@@ -419,7 +557,7 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
                         // calls are not wait()-ing forever.
                         if (!shutingDown) {
                             IPException toThrow = new PrologHaltedException("Prolog death detected in socket at setupCallbackServer, goal was "+
-                                                                            (goalsToExecute.isEmpty()?"none!":goalsToExecute.lastElement().getGoal().getGoal()), 
+                                                                            (goalsToExecute.isEmpty()?"none!":goalsToExecute.peekLast().getGoal().getGoal()), 
                                                                             e);
                             SubprocessEngine.this.endAllTasks(toThrow);
                             available = false;
@@ -453,8 +591,11 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
      	progressMessage("entering receiveObject()");
         Object x=null;
     	try{
-            ObjectInputStream ios = new ObjectInputStream(socket.getInputStream());
+            ObjectInputStream ios = sessionInput;
+            if (ios==null) ios = new PrologInputObjectStream(objectInputStream(),this);
             x = ios.readObject();
+            // Once established, Prolog keeps sending into the same stream:
+            if (sessionStreams) sessionInput = ios;
         } catch (ClassNotFoundException e){
             x = e;
         }
@@ -464,10 +605,23 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
 	
     protected void sendObject(Object y) throws IOException{
     	progressMessage("entering sendObject",y);
-        PrologOutputObjectStream poos = 
-            buildPrologOutputObjectStream(socket.getOutputStream());
-        poos.writeObject(y);
-        poos.flush(); // this actually writes to the socket stream
+        PrologOutputObjectStream poos = sessionOutput;
+        if (poos!=null) {
+            // caller threads and the Prolog handler may both be sending
+            synchronized(poos){
+                if (++sessionMessagesSent % SESSION_RESET_INTERVAL == 0) poos.reset();
+                poos.writeObject(y);
+                poos.flush();
+            }
+        } else {
+            OutputStream os = objectOutputStream();
+            // a ChannelOutputStream's buffer is shared by all messages
+            synchronized(os){
+                poos = buildPrologOutputObjectStream(os);
+                poos.writeObject(y);
+                poos.flush(); // this actually writes to the socket stream
+            }
+        }
     	progressMessage("exiting sendObject",y);
     }
 	
@@ -475,6 +629,8 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
      */
     public synchronized void shutdown(){
         super.shutdown();
+        while(!pendingAsyncGoals.isEmpty())
+            pendingAsyncGoals.removeFirst().abort();
         boolean shouldFire = isAvailable();
         available=false;
         if (shouldFire) fireAvailabilityChange();
@@ -488,8 +644,11 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
                 catch(InterruptedException ie){}
         }
         try{
-            socket.close();
-            serverSocket.close();
+            if (socket!=null) socket.close();
+            if (channel!=null) channel.close();
+            if (serverSocket!=null) serverSocket.close();
+            if (serverChannel!=null) serverChannel.close();
+            if (socketFile!=null) socketFile.delete();
         }catch(IOException e) {throw new IPException("Problems closing sockets:"+e);}
         
         if(intServerSocket!=null){
@@ -670,6 +829,7 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
         interrupting=true;
         doInterrupt(false,false,false);
         interrupting=false;
+        stateChanged();
     }
 	
     /** Assumes the engine is in a break state */
@@ -693,8 +853,11 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
     public Object[] deterministicGoal(String G, String OVar, Object[] objectsP, String RVars){
         // System.out.println("deterministicGoal "+G+" in:"); System.out.println(Thread.currentThread()); System.out.println(this);
         // No Prolog threads being used by InterProlog in this version, so if necessary let's wait until...
-        while(!canAcceptNewGoal(Thread.currentThread())) 
-            Thread.yield();
+        while(true){
+            long V = stateVersion();
+            if (canAcceptNewGoal(Thread.currentThread())) break;
+            awaitStateChange(V);
+        }
         //TODO: further wait() / synchronization still missing here... the initial segments of the next 
         // two methods should be synchronized
         // Possibly related, currently (Oct 9, 2015) a warning at XJ's wiki: 
@@ -757,6 +920,7 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
             // so we can dispense with prompt recognition insofar as firstGoal goes; 
             //but consider the case where a Prolog user goal was injected before
             available = wasAvailable; 
+            stateChanged();
             fireAvailabilityChange();
         } catch (IPException e) {
             throw e;
@@ -769,6 +933,7 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
             topGoalHasStarted = false; // is this OK? this assumes no initiative from the Prolog side, which is probably correct
             //removeErrorHandling();
             progressMessage("Leaving firstGoal for ",G);
+            dispatchAsyncGoal();
         }
         if (goalToDo.wasAborted()) {
             if (shutingDown) throw new UnavailableResultException("IP aborted goal was "+G);
@@ -776,7 +941,7 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
         }
         if (goalToDo.wasInterrupted()) throw new IPInterruptedException(G+" was interrupted");
         if (result.wasInterrupted(this)) {
-        	while(interrupting) Thread.yield(); // Let the interrupt request be fully served
+        	waitUntilInterruptServed(); // Let the interrupt request be fully served
             throw new IPInterruptedException(G+" was interrupted, Prolog detected:\n"+result.error); 
         }
         // if (result.error!=null) throw new IPException (result.error.toString());
@@ -798,6 +963,61 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
         return resultToReturn;
     }
     
+    /** Goals called from a thread with an ongoing goal (e.g. during a javaMessage) are scheduled as usual; 
+    other asynchronous goals queue until the engine is idle, and are then sent as first goals */
+    protected void submitAsyncGoal(GoalToExecute goalToDo){
+        HashSet<Thread> active = new HashSet<Thread>();
+        synchronized(this){
+            activeThreads(active);
+            if (!isIdle() && active.contains(Thread.currentThread())) {
+                super.submitAsyncGoal(goalToDo);
+                return;
+            }
+            pendingAsyncGoals.addLast(goalToDo);
+        }
+        dispatchAsyncGoal();
+    }
+	
+    /** If the engine is idle, sends the oldest pending asynchronous goal to Prolog, much as firstGoal does but without waiting for its result */
+    protected synchronized void dispatchAsyncGoal(){
+        if (pendingAsyncGoals.isEmpty() || !isIdle() || shutingDown) 
+            return;
+        GoalToExecute goalToDo = pendingAsyncGoals.removeFirst();
+        topGoalHasStarted = true;
+        asyncWasAvailable = isAvailable();
+        available=false;
+        if (asyncWasAvailable) fireAvailabilityChange();
+        goalToDo.setFirstGoalStatus(true);
+        if (detectErrorMessages)
+            asyncErrorHandler = setupErrorHandling(goalToDo);
+        scheduleGoal(goalToDo);
+        goalToDo.prologWasCalled();
+        try{
+            realCommand(deterministicGoalString(goalToDo.getTimestamp())); // asynchronous
+            sendObject(goalToDo.getGoal());
+        } catch (IOException e){
+            forgetGoal(goalToDo.getTimestamp());
+            goalToDo.setResult(new ResultFromProlog(goalToDo.getTimestamp(), false, 0, 
+                new IPException("Problem in deterministicGoalAsync:"+e), false));
+        }
+    }
+	
+    protected void asyncGoalEnded(GoalToExecute goalToDo){
+        if (goalToDo.isFirstGoal()){
+            synchronized(this){
+                forgetGoal(goalToDo.getTimestamp()); // in case it ended by an error message rather than a Prolog result
+                if (asyncErrorHandler!=null)
+                    removeErrorHandling(asyncErrorHandler);
+                asyncErrorHandler = null;
+                topGoalHasStarted = false;
+                available = asyncWasAvailable;
+                stateChanged();
+            }
+            fireAvailabilityChange();
+        }
+        dispatchAsyncGoal();
+    }
+    
     final String META_SYNTAX_ERROR = "\001"+" Syntax error, may be from a previous listener goal";
     
     /** Depending on the engine mode (e.g. Prolog toploop, Flora shell...) we may need to wrap the Prolog goal into something more
@@ -811,9 +1031,10 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
         else return super.doSomething();
     }
 	
-    protected synchronized boolean onlyFirstGoalSchedulled(){
-        return isIdle() || (messagesExecuting.size()==0 && goalsToExecute.size()==1 && 
-                            ((GoalToExecute)goalsToExecute.elementAt(0)).isFirstGoal());
+    protected boolean onlyFirstGoalSchedulled(){
+        if (isIdle()) return true;
+        GoalToExecute first = goalsToExecute.peekFirst();
+        return messagesExecuting.isEmpty() && first!=null && first==goalsToExecute.peekLast() && first.isFirstGoal();
     }
 	
     // deterministicGoal helpers
@@ -0,0 +1,275 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.declarativa.interprolog.util.AtomTable;
+import com.declarativa.interprolog.util.IPException;
+import com.declarativa.interprolog.util.VariableNode;
+
+/** A compact binary encoding of Prolog terms, an alternative to serializing TermModel objects or passing
+canonical text as with InitiallyFlatTermModel. On the Prolog side see ipEncodeTerm/2 and ipDecodeTerm/2 in interprolog.P,
+which must be kept in sync with this class. A term is encoded as a tagged prefix walk:
+<pre>
+	VAR id			variable, with its VariableNode number
+	ATOM_NEW length utf		atom, added to the atom table of this term
+	ATOM_REF index		atom previously in the atom table
+	INT zigzag			integer, of any size
+	DOUBLE ieee			8 bytes, big endian
+	COMPOUND atom arity args	functor as ATOM_NEW or ATOM_REF
+	LIST count elements tail	list cells
+	NIL				empty list
+</pre>
+Integers (including lengths, indexes and ids) are unsigned varints, 7 bits per byte, least significant first;
+signed integers are zigzag encoded first. Integers decode as the smallest of Integer, Long or BigInteger able to hold them. Atom text uses the (3 bytes max) UTF-8 variant used by Java serialization.
+*/
+public class TermCodec {
+	public static final int VAR = 0;
+	public static final int ATOM_NEW = 1;
+	public static final int ATOM_REF = 2;
+	public static final int INT = 3;
+	public static final int DOUBLE = 4;
+	public static final int COMPOUND = 5;
+	public static final int LIST = 6;
+	public static final int NIL = 7;
+
+	/** Encodes a term; list cells should have the functor "." (or "[|]", as built on SWI) */
+	public static byte[] encode(TermModel T){
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		new Encoder(bytes).term(T);
+		return bytes.toByteArray();
+	}
+
+	public static TermModel decode(byte[] bytes){
+		return decode(ByteBuffer.wrap(bytes));
+	}
+
+	/** Decodes a single term starting at the buffer's position, which is left just after it */
+	public static TermModel decode(ByteBuffer buffer){
+		try{
+			return new Decoder(buffer).term();
+		} catch (BufferUnderflowException e){
+			throw new IPException("Truncated term encoding");
+		}
+	}
+
+	static class Encoder{
+		final ByteArrayOutputStream bytes;
+		final HashMap<String,Integer> atoms = new HashMap<String,Integer>();
+
+		Encoder(ByteArrayOutputStream bytes){
+			this.bytes = bytes;
+		}
+
+		void term(TermModel T){
+			if (isListCell(T)){
+				ArrayList<TermModel> elements = new ArrayList<TermModel>();
+				do {
+					elements.add((TermModel)T.getChild(0));
+					T = (TermModel)T.getChild(1);
+				} while (isListCell(T));
+				bytes.write(LIST);
+				varint(elements.size());
+				for (TermModel E:elements)
+					term(E);
+				// ...followed by the tail
+			}
+			Object node = T.node;
+			int arity = T.getChildCount();
+			if (node instanceof VariableNode){
+				bytes.write(VAR);
+				varint(((VariableNode)node).getNumber());
+			} else if (node instanceof Integer || node instanceof Long || node instanceof Short || node instanceof Byte){
+				bytes.write(INT);
+				long X = ((Number)node).longValue();
+				varint((X << 1) ^ (X >> 63));
+			} else if (node instanceof BigInteger){
+				bytes.write(INT);
+				BigInteger X = (BigInteger)node;
+				BigInteger Z = (X.signum()>=0 ? X.shiftLeft(1) : X.negate().shiftLeft(1).subtract(BigInteger.ONE));
+				while (Z.bitLength()>7){
+					bytes.write((Z.intValue() & 0x7F) | 0x80);
+					Z = Z.shiftRight(7);
+				}
+				bytes.write(Z.intValue());
+			} else if (node instanceof Double || node instanceof Float){
+				bytes.write(DOUBLE);
+				long X = Double.doubleToLongBits(((Number)node).doubleValue());
+				for (int shift=56; shift>=0; shift-=8)
+					bytes.write((int)(X >>> shift));
+			} else if (node instanceof String){
+				if (arity==0 && node.equals("[]")) bytes.write(NIL);
+				else {
+					if (arity>0) bytes.write(COMPOUND);
+					atom((String)node);
+					if (arity>0) {
+						varint(arity);
+						for (int c=0;c<arity;c++)
+							term((TermModel)T.getChild(c));
+					}
+				}
+			} else throw new IPException("Term node can not be encoded:"+node);
+		}
+
+		static boolean isListCell(TermModel T){
+			return T.getChildCount()==2 && (T.node.equals(TermModel.LIST_FUNCTOR) || T.node.equals("[|]"));
+		}
+
+		void atom(String A){
+			Integer index = atoms.get(A);
+			if (index!=null){
+				bytes.write(ATOM_REF);
+				varint(index);
+				return;
+			}
+			atoms.put(A,atoms.size());
+			bytes.write(ATOM_NEW);
+			int length = 0;
+			for (int i=0;i<A.length();i++){
+				char C = A.charAt(i);
+				length += (C<128 ? 1 : (C<2048 ? 2 : 3));
+			}
+			varint(length);
+			for (int i=0;i<A.length();i++){
+				char C = A.charAt(i);
+				if (C<128) bytes.write(C);
+				else if (C<2048) {
+					bytes.write(0xC0 | (C>>6));
+					bytes.write(0x80 | (C & 0x3F));
+				} else {
+					bytes.write(0xE0 | (C>>12));
+					bytes.write(0x80 | ((C>>6) & 0x3F));
+					bytes.write(0x80 | (C & 0x3F));
+				}
+			}
+		}
+
+		void varint(long X){
+			while((X & ~0x7FL) != 0){
+				bytes.write((int)((X & 0x7F) | 0x80));
+				X >>>= 7;
+			}
+			bytes.write((int)X);
+		}
+	}
+
+	static class Decoder{
+		final ByteBuffer buffer;
+		final ArrayList<String> atoms = new ArrayList<String>();
+		final HashMap<Long,VariableNode> variables = new HashMap<Long,VariableNode>();
+		char[] chars = new char[64];
+
+		Decoder(ByteBuffer buffer){
+			this.buffer = buffer;
+		}
+
+		TermModel term(){
+			int tag = buffer.get();
+			switch(tag){
+				case VAR:
+					long id = varint();
+					VariableNode V = variables.get(id);
+					if (V==null) {
+						V = new VariableNode((int)id);
+						variables.put(id,V);
+					}
+					return new TermModel(V);
+				case ATOM_NEW:
+				case ATOM_REF:
+					return new TermModel(atom(tag));
+				case INT:
+					return new TermModel(integer());
+				case DOUBLE:
+					return new TermModel(new Double(buffer.getDouble()));
+				case COMPOUND:
+					String functor = atom(buffer.get());
+					TermModel[] children = new TermModel[(int)varint()];
+					for (int c=0;c<children.length;c++)
+						children[c] = term();
+					return new TermModel(functor,children);
+				case LIST:
+					TermModel[] elements = new TermModel[(int)varint()];
+					for (int e=0;e<elements.length;e++)
+						elements[e] = term();
+					TermModel list = term();
+					boolean proper = list.isListEnd();
+					for (int e=elements.length-1;e>=0;e--)
+						list = new TermModel(TermModel.LIST_FUNCTOR,new TermModel[]{elements[e],list},proper);
+					return list;
+				case NIL:
+					return new TermModel("[]",true);
+				default:
+					throw new IPException("Bad term encoding tag:"+tag);
+			}
+		}
+
+		String atom(int tag){
+			if (tag==ATOM_REF) return atoms.get((int)varint());
+			if (tag!=ATOM_NEW) throw new IPException("Bad atom encoding tag:"+tag);
+			int length = (int)varint();
+			if (chars.length<length) chars = new char[length];
+			int count = 0;
+			int end = buffer.position()+length;
+			while(buffer.position()<end){
+				int B = buffer.get() & 0xFF;
+				if (B<128) chars[count++] = (char)B;
+				else if ((B & 0xE0) == 0xC0)
+					chars[count++] = (char)(((B & 0x1F) << 6) | (buffer.get() & 0x3F));
+				else
+					chars[count++] = (char)(((B & 0x0F) << 12) | ((buffer.get() & 0x3F) << 6) | (buffer.get() & 0x3F));
+			}
+			String A = AtomTable.DEFAULT.canonical(chars,0,count);
+			atoms.add(A);
+			return A;
+		}
+
+		/** An unsigned varint of at most 64 bits */
+		long varint(){
+			long X = 0;
+			for (int shift=0; shift<64; shift+=7){
+				int B = buffer.get();
+				if (shift==63 && (B & 0xFE)!=0) break;
+				X |= (long)(B & 0x7F) << shift;
+				if ((B & 0x80)==0) return X;
+			}
+			throw new IPException("Integer too large in term encoding");
+		}
+
+		/** A zigzag encoded varint, as the smallest of Integer, Long or BigInteger able to hold it */
+		Number integer(){
+			long Z = 0;
+			for (int shift=0; shift<63; shift+=7){
+				int B = buffer.get();
+				Z |= (long)(B & 0x7F) << shift;
+				if ((B & 0x80)==0) {
+					long X = (Z >>> 1) ^ -(Z & 1);
+					if (X>=Integer.MIN_VALUE && X<=Integer.MAX_VALUE) return new Integer((int)X);
+					else return new Long(X);
+				}
+			}
+			// beyond 63 bits, as from SWI's unbounded integers:
+			BigInteger big = BigInteger.valueOf(Z);
+			int B;
+			int shift = 63;
+			do {
+				B = buffer.get();
+				big = big.or(BigInteger.valueOf(B & 0x7F).shiftLeft(shift));
+				shift += 7;
+			} while ((B & 0x80)!=0);
+			BigInteger X = (big.testBit(0) ? big.add(BigInteger.ONE).shiftRight(1).negate() : big.shiftRight(1));
+			if (X.bitLength()<32) return new Integer(X.intValue());
+			if (X.bitLength()<64) return new Long(X.longValue());
+			return X;
+		}
+	}
+}
@@ -8,10 +8,12 @@ Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
 package com.declarativa.interprolog;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
@@ -21,6 +23,7 @@ import javax.swing.event.TreeModelListener;
 import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
 
+import com.declarativa.interprolog.util.AtomTable;
 import com.declarativa.interprolog.util.IPException;
 import com.declarativa.interprolog.util.VariableNode;
 
@@ -33,15 +36,15 @@ public class TermModel implements Serializable,TreeModel{
 	/** public for convenience, but should not be set outside this class */
 	public Object node;
 	/** public for convenience, but should not be set outside this class;
-	children == null means children == new TermModel[0]*/
+	children == null means children == new TermModel[0]. Subclasses may build it on demand, see inflateChildren()*/
 	public TermModel[] children; 
 	/** This should be true only if node=="." or node=="[|]" (on SWI) or node=="[]" and this represents a list term */
 	protected boolean hasListFunctor;
 	
 	private transient Vector<TreeModelListener> treeListeners=null /*new Vector() here doesn't work on deserialization...*/;
 	private transient Vector<TermModelListener> termListeners;
-	/** Used for hashCode() */
-	private transient int hashCodeCache=0;
+	/** Maximum number of subterms (in depth first order) combined by hashCode() */
+	public static final int HASHED_SUBTERMS = 256;
 	/** The TermModel containing this; relevant to define variable scope. For this to contain the root, 
 	the root TermModel must have been messaged once with setRoot() */
 	public transient TermModel root; 
@@ -78,15 +81,33 @@ public class TermModel implements Serializable,TreeModel{
 		return x;
 	}
 	
+	/** Atoms arriving from Prolog become canonical instances, see AtomTable */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		if (node instanceof String) node = AtomTable.DEFAULT.canonical((String)node);
+	}
+	
 	/** True if both terms are structurally similar with equal nodes. 
-	If nonground...variables will be compared as if with == . Probably what you do NOT want to do.*/
+	If nonground...variables will be compared as if with == . Probably what you do NOT want to do.
+	Iterative, so deep terms such as long lists do not overflow the stack */
 	public boolean equals(Object x){
+		if (x==this) return true;
 		if (!(x instanceof TermModel)) return false;
-		TermModel tx = (TermModel)x;
-		if (!(node.equals(tx.node))) return false;
-		if (getChildCount()!=tx.getChildCount()) return false;
-		for (int c=0; c<getChildCount(); c++)
-			if (!(getChild(c).equals(tx.getChild(c)))) return false;
+		// pairs of subterms to compare
+		TermModel[] pending = new TermModel[16];
+		int top = 0;
+		pending[top++] = this; pending[top++] = (TermModel)x;
+		while (top>0){
+			TermModel b = pending[--top], a = pending[--top];
+			if (a==b) continue;
+			if (!(a.node.equals(b.node))) return false;
+			int n = a.getChildCount();
+			if (n!=b.getChildCount()) return false;
+			if (top+2*n>pending.length) pending = Arrays.copyOf(pending,Math.max(pending.length*2,top+2*n));
+			for (int c=n-1; c>=0; c--){
+				pending[top++] = a.children[c]; pending[top++] = b.children[c];
+			}
+		}
 		return true;
 	}
 	
@@ -125,8 +146,13 @@ public class TermModel implements Serializable,TreeModel{
 		if (changed) fireTermChanged();
 	}
 	
+	/** Hook for subclasses which build children only when first needed, e.g. lazily inflated InitiallyFlatTermModel subterms. 
+	This class reads the children field only after calling this; code outside it should prefer getChild(..) and getChildren() */
+	protected void inflateChildren(){}
+	
 	/** Set the child, notifying TermModelListeners */
 	public void setChild(int index,TermModel child){
+		inflateChildren();
 		boolean changed = !(child==children[index]);
 		children[index] = child;
 		if (changed) fireTermChanged();
@@ -140,6 +166,7 @@ public class TermModel implements Serializable,TreeModel{
 	}
 	
 	public TermModel[] getChildren(){
+		inflateChildren();
 		return children;
 	}
 	
@@ -171,6 +198,7 @@ public class TermModel implements Serializable,TreeModel{
 	will be removed */
 	public void deleteChildren(TermModel[] less){
 		if (less.length==0) return;
+		inflateChildren();
 		// System.out.println(getChildCount()+ "children, less.length=="+less.length);
 		// TermModel[] newChildren = new TermModel[getChildCount()-less.length];
 		Vector<TermModel> newTemp = new Vector<TermModel>();
@@ -276,10 +304,12 @@ public class TermModel implements Serializable,TreeModel{
 	}
 	/** @see javax.swing.tree.TreeModel */
 	public Object getChild(Object parent,int index) {
+		((TermModel)parent).inflateChildren();
 		return ((TermModel)parent).children[index];
 	}
 	/** @see javax.swing.tree.TreeModel */
     public int getChildCount(Object parent){
+    	((TermModel)parent).inflateChildren();
     	TermModel[] c = ((TermModel)parent).children;
     	if (c==null) return 0;
 		else return c.length;
@@ -294,6 +324,7 @@ public class TermModel implements Serializable,TreeModel{
     }   
 	/** @see javax.swing.tree.TreeModel */
     public int getIndexOfChild(Object parent,Object child){
+    	((TermModel)parent).inflateChildren();
     	TermModel[] c = ((TermModel)parent).children;
     	if (c==null) return 0;
     	for (int i=0; i<c.length; i++)
@@ -336,7 +367,6 @@ public class TermModel implements Serializable,TreeModel{
 		throw new IPException("Bad removal of TermModelListener");
 	}
 	public void fireTermChanged(){
-		hashCodeCache = 0;
 		if (isRoot()) {
 			if (termListeners!=null)
 				for (int l=0;l<termListeners.size();l++)
@@ -530,45 +560,114 @@ public class TermModel implements Serializable,TreeModel{
 	is to be found in function quotes_are_needed() in io_builtins_xsb.c*/
 	// test for example with ?- buildTermModel(a=(b+c)/d,_TM), javaMessage(_TM,string(S),toString).
 	public String toString(PrologOperatorsContext ops, boolean quoted){
-		if (getChildCount()==0) {
-			String NS = node.toString();
-			// if (quoted && isAtom() && NS.length()>0 && !Character.isLowerCase(NS.charAt(0))) return "'"+NS+"'";
-			if (quoted && isAtom() /* && quotesAreNeeded(NS)*/) return "'"+doubleQuotes(NS)+"'";
-			else return NS;
-		} 
-		if (isList()) 
-			return listToString(ops,quoted);
-			
-		String NS = nodeToString(ops,quoted);
-		int nodePrecedence = precedence(ops);
-		String R;
-		PrologOperatorsContext.PrologOperator op;
-		if (children.length==1){
-			op = ops.prefixOperator(node.toString());
-			if (op!=null&&!quoted) {
-				R = node + " " + parenthesize(children[0].precedence(ops)>nodePrecedence, children[0].toString(ops,quoted));
-			} else {
-				op = ops.postfixOperator(node.toString());
-				if (op!=null&&!quoted) {
-					R = parenthesize(children[0].precedence(ops)>nodePrecedence, children[0].toString(ops,quoted)) + " "+ node;
-				} else{
-					R = NS+"("+children[0].toString(ops,quoted)+")";
+		StringBuilder sb = new StringBuilder();
+		try{
+			write(sb,ops,quoted);
+		} catch (IOException e){
+			throw new IPException("Impossible:"+e);
+		}
+		return sb.toString();
+	}
+	
+	/** Same as write(out,defaultOperatorContext,quoted) */
+	public void write(Appendable out, boolean quoted) throws IOException{
+		write(out,defaultOperatorContext,quoted);
+	}
+	
+	/** Writes the same text as toString(ops,quoted), but directly to out, e.g. a Writer, so huge terms need not become a String. 
+	Uses an explicit stack rather than recursion, so deep terms such as long lists do not overflow the Java stack */
+	public void write(Appendable out, PrologOperatorsContext ops, boolean quoted) throws IOException{
+		// Strings to append, TermModels to write, ListRests to continue lists with
+		Object[] pending = new Object[16];
+		int top = 0;
+		pending[top++] = this;
+		while (top>0){
+			Object task = pending[--top];
+			// room for the most pushed below, other than for compound terms: an infix operator with both arguments parenthesized
+			if (top+7>pending.length) pending = Arrays.copyOf(pending,pending.length*2);
+			if (task instanceof String) {
+				out.append((String)task);
+				continue;
+			}
+			if (task instanceof ListRest){
+				ListRest LR = (ListRest)task;
+				TermModel temp = LR.list;
+				if (temp.getChildCount()<2) { // malformed list
+					out.append(']');
+					continue;
+				}
+				TermModel tail = (TermModel)temp.getChild(1);
+				if (tail.isListEnd()) out.append(']');
+				else if (!tail.isList()) { // tail is not a list
+					out.append('|');
+					pending[top++] = "]";
+					pending[top++] = tail;
+				} else {
+					out.append(',');
+					if (!quoted && LR.index+1==listMaxLength) out.append("...]");
+					else {
+						pending[top++] = new ListRest(tail,LR.index+1);
+						pending[top++] = tail.getChild(0);
+					}
 				}
+				continue;
 			}
-		} else {
-			op = ops.infixOperator(node.toString());
-			if (children.length==2 && op!=null &&!quoted) {
-				R = parenthesize(children[0].precedence(ops)>nodePrecedence, children[0].toString(ops,quoted)) + node + 
-					parenthesize(children[1].precedence(ops)>nodePrecedence, children[1].toString(ops,quoted));
-			} else { // children.lenght>=2 || ...
-				StringBuffer s= new StringBuffer(NS+"("+children[0].toString(ops,quoted));
-				for (int i=1;i<children.length;i++){
-					s.append(","+children[i].toString(ops,quoted));
+			TermModel T = (TermModel)task;
+			if (T.getChildCount()==0) {
+				String NS = T.node.toString();
+				if (quoted && T.isAtom()) {
+					out.append('\'');
+					appendDoubledQuotes(out,NS);
+					out.append('\'');
+				} else out.append(NS);
+				continue;
+			} 
+			if (T.isList()){
+				out.append('[');
+				pending[top++] = new ListRest(T,0);
+				pending[top++] = T.getChild(0);
+				continue;
+			}
+			TermModel[] children = T.children;
+			int nodePrecedence = T.precedence(ops);
+			String nodeS = T.node.toString();
+			if (children.length==1 && !quoted && ops.prefixOperator(nodeS)!=null) {
+				out.append(nodeS).append(' ');
+				top = pushParenthesized(pending,top,children[0],children[0].precedence(ops)>nodePrecedence);
+			} else if (children.length==1 && !quoted && ops.postfixOperator(nodeS)!=null) {
+				pending[top++] = " "+nodeS;
+				top = pushParenthesized(pending,top,children[0],children[0].precedence(ops)>nodePrecedence);
+			} else if (children.length==2 && !quoted && ops.infixOperator(nodeS)!=null) {
+				top = pushParenthesized(pending,top,children[1],children[1].precedence(ops)>nodePrecedence);
+				pending[top++] = nodeS;
+				top = pushParenthesized(pending,top,children[0],children[0].precedence(ops)>nodePrecedence);
+			} else {
+				out.append(T.nodeToString(ops,quoted)).append('(');
+				if (top+2*children.length+1>pending.length) pending = Arrays.copyOf(pending,top+2*children.length+16);
+				pending[top++] = ")";
+				for (int i=children.length-1;i>=0;i--){
+					pending[top++] = children[i];
+					if (i>0) pending[top++] = ",";
 				}
-				R = s+")";
-			}		
+			}
+		}
+	}
+	
+	/** Pushes T for writing, possibly within parenthesis; returns the new top */
+	private static int pushParenthesized(Object[] pending,int top,TermModel T,boolean yes){
+		if (yes) pending[top++] = ")";
+		pending[top++] = T;
+		if (yes) pending[top++] = "(";
+		return top;
+	}
+	
+	/** The remaining elements of a list being written, after its element number index */
+	private static class ListRest{
+		final TermModel list;
+		final int index;
+		ListRest(TermModel list,int index){
+			this.list = list; this.index = index;
 		}
-		return R;
 	}
 	
 	public String toIndentedString(){
@@ -584,10 +683,33 @@ public class TermModel implements Serializable,TreeModel{
 	}
 	
 	public String toIndentedString(int level){
-		StringBuilder sb = new StringBuilder(indentation(level)+node.toString());
-		for (int i=0; i<getChildCount(); i++){
-			if (i==0) sb.append("\n");
-			sb.append(children[i].toIndentedString(level+1)+"\n");
+		StringBuilder sb = new StringBuilder();
+		// Strings to append, or TermModels to write at the level in the same index of levels
+		Object[] pending = new Object[16];
+		int[] levels = new int[16];
+		int top = 0;
+		pending[top] = this; levels[top++] = level;
+		while (top>0){
+			Object task = pending[--top];
+			if (task instanceof String) {
+				sb.append((String)task);
+				continue;
+			}
+			TermModel T = (TermModel)task;
+			int L = levels[top];
+			for (int i=0; i<L; i++) sb.append(INDENT);
+			sb.append(T.node.toString());
+			int n = T.getChildCount();
+			if (n==0) continue;
+			sb.append('\n');
+			if (top+2*n>pending.length) {
+				pending = Arrays.copyOf(pending,Math.max(pending.length*2,top+2*n));
+				levels = Arrays.copyOf(levels,pending.length);
+			}
+			for (int i=n-1; i>=0; i--){
+				pending[top++] = "\n";
+				pending[top] = T.children[i]; levels[top++] = L+1;
+			}
 		}
 		return sb.toString();
 	}
@@ -598,14 +720,25 @@ public class TermModel implements Serializable,TreeModel{
 	}
 
     public static String doubleQuotes(String S){
-		StringBuffer R = new StringBuffer();
-		for (int i=0; i<S.length(); i++) {
-			char C = S.charAt(i);
-			if (C == '\'') R.append("''");
-			else R.append(C);
+		if (S.indexOf('\'')==-1) return S;
+		StringBuilder R = new StringBuilder();
+		try{
+			appendDoubledQuotes(R,S);
+		} catch (IOException e){
+			throw new IPException("Impossible:"+e);
 		}
 		return R.toString();
     }
+    
+    static void appendDoubledQuotes(Appendable out,String S) throws IOException{
+		int from = 0;
+		int quote;
+		while ((quote = S.indexOf('\'',from))!=-1){
+			out.append(S,from,quote+1).append('\'');
+			from = quote+1;
+		}
+		out.append(S,from,S.length());
+    }
 	
 	public static String quoteIfFirstUpper(String S){
 		if (!Character.isUpperCase(S.charAt(0))) return S;
@@ -627,25 +760,9 @@ public class TermModel implements Serializable,TreeModel{
 	public static final int listMaxLength=100;
 	
 	
+	/** Assumes this is a non empty list; unless quoted, writes at most listMaxLength elements */
 	public String listToString(PrologOperatorsContext ops,boolean quoted){
-		int i;
-		StringBuffer s = new StringBuffer("[");
-		TermModel temp = this;
-		for( i = 0 ; i < (!quoted?listMaxLength:Integer.MAX_VALUE) ; i++ ){
-			s.append(temp.children[0].toString(ops,quoted)); // head
-			if (temp.children.length<2) break; // hack to deal with some malformed lists
-			temp = temp.children[1];
-			if (temp.isListEnd()) break;
-			if( ! temp.isList() ) break ; // tail is not a list
-			s.append(',') ;
-		}
-		if( (!quoted && i == listMaxLength) )
-			s.append("...");
-        else if ( ! temp.isListEnd() ) {
-			s.append('|') ;
-			s.append(temp.toString(ops,quoted)); 
-		}
-		return s + "]";
+		return toString(ops,quoted);
 	}
 	
 	public String flatListToString(PrologOperatorsContext ops,boolean quoted){    
@@ -718,8 +835,8 @@ public class TermModel implements Serializable,TreeModel{
         while (x != null) {
             if (x.isListEnd()) break; // out of while
 		if (x.isList()) {
-			bag.addElement(x.children[0]);
-                x = x.children[1];
+			bag.addElement((TermModel)x.getChild(0));
+                x = (TermModel)x.getChild(1);
 		} else throw new IPException("Not a well formed list:"+x);
 	}
     }
@@ -731,7 +848,7 @@ public class TermModel implements Serializable,TreeModel{
 			if (term.isLeaf()) result.put(term.node.toString(),term.node);
 			else if ((!term.node.equals("=") || term.getChildCount()!=2)) 
 				throw new RuntimeException("bad proplist");
-			else result.put(term.children[0].toString(),term.children[1]);
+			else result.put(term.getChild(0).toString(),term.getChild(1));
 		}
 		return result;
 	}
@@ -740,27 +857,42 @@ public class TermModel implements Serializable,TreeModel{
 	Doesn't change the terms. */
     public boolean unifies(TermModel term){
 		if (term == null) return false;
-		if(this.isVar() || term.isVar()) return true;
-        if (!(node.equals(term.node))) return false;
-        if (getChildCount()!=term.getChildCount()) return false;
-        for (int c=0; c<getChildCount(); c++)
-            if (!(((TermModel)getChild(c)).unifies((TermModel)term.getChild(c)))) return false;
-        return true;
+		// pairs of subterms to check
+		TermModel[] pending = new TermModel[16];
+		int top = 0;
+		pending[top++] = this; pending[top++] = term;
+		while (top>0){
+			TermModel b = pending[--top], a = pending[--top];
+			if(a.isVar() || b.isVar()) continue;
+			if (!(a.node.equals(b.node))) return false;
+			int n = a.getChildCount();
+			if (n!=b.getChildCount()) return false;
+			if (top+2*n>pending.length) pending = Arrays.copyOf(pending,Math.max(pending.length*2,top+2*n));
+			for (int c=n-1; c>=0; c--){
+				pending[top++] = a.children[c]; pending[top++] = b.children[c];
+			}
+		}
+		return true;
     }
     
-    /** Returns an hashCode for the result of toString() */
+    /** Structural hash consistent with equals(): combines the nodes and arities of the first HASHED_SUBTERMS subterms in
+    depth first order, iteratively. Not cached, as subterms may change without their ancestors knowing */
     public int hashCode(){
-    	if (hashCodeCache==0){
-    		//hashCodeCache = toString().hashCode();
-    		StringBuilder SB = new StringBuilder(node.toString() + getChildCount());
-    		for (int c=0; c<getChildCount(); c++){
-    			TermModel C = (TermModel)getChild(c);
-    			String nodeS = (C.node instanceof VariableNode?"var":C.node.toString());
-    			SB.append(nodeS+C.getChildCount());
-    		}
-    		hashCodeCache = SB.toString().hashCode();
+    	int h = 1;
+    	TermModel[] pending = new TermModel[16];
+    	int top = 0;
+    	pending[top++] = this;
+    	for (int hashed=0; top>0 && hashed<HASHED_SUBTERMS; hashed++){
+    		TermModel T = pending[--top];
+    		int n = T.getChildCount();
+    		h = 31*h + T.node.hashCode();
+    		h = 31*h + n;
+    		int k = Math.min(n,HASHED_SUBTERMS-hashed); // later children would not be reached
+    		if (top+k>pending.length) pending = Arrays.copyOf(pending,Math.max(pending.length*2,top+k));
+    		for (int c=k-1; c>=0; c--)
+    			pending[top++] = T.children[c];
     	}
-    	return hashCodeCache;
+    	return h;
     }
     
     public int precedence(PrologOperatorsContext context){
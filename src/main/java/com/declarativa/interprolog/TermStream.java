@@ -0,0 +1,138 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+
+package com.declarativa.interprolog;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.declarativa.interprolog.util.IPException;
+
+/** Terms pushed by Prolog, one at a time, as they're computed: for each solution of a goal, Prolog sends an instance
+of a template, using the engine's term transport (see AbstractPrologEngine.setTermTransport).
+At most capacity terms wait for the consumer, Prolog blocking while the buffer is full; so Java may consume a term while Prolog computes
+the next ones, with memory bounded on both sides regardless of the number of terms.
+Use as an Iterator, or as a Stream with stream(); either way close() it if not consumed to the end. */
+public class TermStream implements Iterator<TermModel>{
+	AbstractPrologEngine engine;
+	String template; String G; String OVar; Object[] objectsP;
+	final int capacity;
+	Thread prologExecution = null;
+	volatile boolean closeRequested = false;
+	volatile boolean ended = false;
+	/** Terms received but not yet consumed; guarded by this */
+	private final ArrayDeque<TermModel> terms = new ArrayDeque<TermModel>();
+	/** The Prolog execution thread died with this */
+	private Throwable executionProblem = null;
+
+	TermStream(AbstractPrologEngine engine, String template, String G, String OVar, Object[] objectsP, int capacity){
+		this.engine = engine;
+		this.template=template; this.G=G; this.OVar=OVar; this.objectsP=objectsP;
+		this.capacity = capacity;
+	}
+
+	/** Makes sure the Prolog goal evaluation has started */
+	private void execute(){
+		if (prologExecution!=null) return;
+		prologExecution = new Thread("TermStream handler"){
+			public void run(){
+				int ID = engine.registerJavaObject(TermStream.this);
+				try{
+					String goal = "("+G+"), "+engine.termBuilder()+"(("+template+"),_IP_TM), "+
+						"javaMessage("+ID+",_IP_R,put(_IP_TM)), "+
+						"ipObjectSpec('java.lang.Boolean',_IP_R,[0],_) "; // 0/false means the stream was closed
+					engine.deterministicGoal(goal, OVar, objectsP);
+				} catch (Throwable T){
+					synchronized(TermStream.this){
+						executionProblem = T;
+					}
+				} finally {
+					engine.unregisterJavaObject(ID);
+					synchronized(TermStream.this){
+						ended = true;
+						TermStream.this.notifyAll();
+					}
+					engine.nonDeterministicGoalActive = false;
+				}
+			}
+		};
+		prologExecution.start();
+	}
+
+	/** Messaged by Prolog for each solution. Blocks while capacity terms wait for the consumer. Returns false if the stream was closed,
+	so Prolog stops sending
+	@param model a TermModel, or a byte[] from ipEncodeTerm/2 */
+	public synchronized boolean put(Object model){
+		try{
+			while(terms.size()>=capacity && !closeRequested)
+				wait();
+		} catch (InterruptedException e){
+			throw new IPException("Bad interrupt: "+e);
+		}
+		if (closeRequested) return false;
+		if (model instanceof byte[]) terms.addLast(TermCodec.decode((byte[])model));
+		else terms.addLast((TermModel)model);
+		notifyAll();
+		return true;
+	}
+
+	public synchronized boolean hasNext(){
+		if (closeRequested) return false;
+		execute();
+		try{
+			while (terms.isEmpty() && !ended)
+				wait();
+		} catch (InterruptedException e){
+			throw new IPException("Bad interrupt: "+e);
+		}
+		if (terms.isEmpty() && executionProblem!=null) {
+			if (executionProblem instanceof IPException) throw (IPException)executionProblem;
+			throw new IPException("Problem in TermStream goal:"+executionProblem);
+		}
+		return !terms.isEmpty();
+	}
+
+	public synchronized TermModel next(){
+		if (!hasNext()) throw new NoSuchElementException("No more terms from "+G);
+		TermModel T = terms.pollFirst();
+		notifyAll(); // Prolog may now send more
+		return T;
+	}
+
+	public void remove(){
+		throw new UnsupportedOperationException("Can't remove a term from its stream");
+	}
+
+	/** Stops Prolog from sending more terms, and waits for its goal to end */
+	public synchronized void close(){
+		closeRequested = true;
+		notifyAll();
+		try{
+			if (prologExecution!=null)
+				while (!ended)
+					wait();
+		} catch (InterruptedException e){
+			throw new IPException("Bad interrupt: "+e);
+		}
+		if (prologExecution==null) engine.nonDeterministicGoalActive = false;
+		terms.clear();
+	}
+
+	/** A sequential Stream over the remaining terms; closing it closes this */
+	public Stream<TermModel> stream(){
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this,Spliterator.ORDERED|Spliterator.NONNULL),false).onClose(new Runnable(){
+			public void run(){
+				close();
+			}
+		});
+	}
+}
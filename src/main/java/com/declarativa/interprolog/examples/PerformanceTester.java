@@ -10,6 +10,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 
 import com.declarativa.interprolog.AbstractPrologEngine;
 import com.declarativa.interprolog.InitiallyFlatTermModel;
@@ -17,8 +18,10 @@ import com.declarativa.interprolog.PrologEngine;
 import com.declarativa.interprolog.TermModel;
 import com.declarativa.interprolog.XSBSubprocessEngine;
 import com.declarativa.interprolog.SWISubprocessEngine;
+import com.declarativa.interprolog.util.GoalFromJava;
 import com.declarativa.interprolog.util.IPException;
 import com.declarativa.interprolog.util.OutOfBandTermResource;
+import com.declarativa.interprolog.util.ResultFromProlog;
 /** Run some tests regarding data passing throughput (bytes/second); tests in the InterProlog 
 test suit already measure performance for number of calls/second
 walltime in Prolog (cputime not reliable??), walltime in Java!!!*/
@@ -85,6 +88,62 @@ public class PerformanceTester{
 			System.out.println(message+": Java serialization takes "+(javaSerial/Nruns)+" mS, unserialization "+(javaUnserial/Nruns)+" mS ("+ baos.size() +" bytes total)");
 		} catch (Exception e){throw new RuntimeException("Bad exception in javaSerializationTimes:"+e);}
 	}	
+	/** Prints the distribution of wall times of deterministicGoals that do a single javaMessage; 
+	this includes the Prolog handler wakeup after each callback completes */
+	static void callbackLatencies(PrologEngine engine, int calls){
+		long[] times = new long[calls];
+		for (int c=0;c<calls;c++){
+			long T0 = System.nanoTime();
+			if (!engine.deterministicGoal("ipPrologEngine(E), javaMessage(E,isAvailable)")) 
+				throw new IPException("FAILED callback latency loop");
+			times[c] = System.nanoTime() - T0;
+		}
+		java.util.Arrays.sort(times);
+		System.out.println("Callback round trip latency over "+calls+" calls (mS): min "+times[0]/1e6+", median "+times[calls/2]/1e6+
+			", 90% "+times[calls*9/10]/1e6+", 99% "+times[calls*99/100]/1e6+", max "+times[calls-1]/1e6);
+	}
+	
+	/** Compares deterministicGoalTerms over the available term transports */
+	static void termTransportTimes(AbstractPrologEngine engine, String termBuilderGoal, String description){
+		String[] names = {"TermModel objects","InitiallyFlatTermModel text","TermCodec"};
+		int previous = engine.getTermTransport();
+		for (int t=AbstractPrologEngine.TERMS_AS_OBJECTS; t<=AbstractPrologEngine.TERMS_AS_CODEC; t++){
+			engine.setTermTransport(t);
+			try{
+				long T0= System.currentTimeMillis();
+				for (int r=0;r<Nruns-1;r++)
+					engine.deterministicGoalTerms(termBuilderGoal,"[L]");
+				long T1= System.currentTimeMillis();
+				System.out.println("Received "+description+" as "+names[t]+" in "+(T1-T0)/Nruns+" mS");
+			} catch (IPException e){
+				System.out.println("Could not receive "+description+" as "+names[t]+": "+e);
+			}
+		}
+		engine.setTermTransport(previous);
+	}
+	
+	/** Sends a byte[] and an int[] of size elements both ways, printing throughputs */
+	static void arrayThroughputs(PrologEngine engine, int size){
+		String[] types = {"byte","int"};
+		int[] elementBytes = {1,4};
+		for (int t=0;t<types.length;t++){
+			String spec = "ipObjectSpec('ArrayOf"+types[t]+"',A,[L],_)";
+			long T0= System.currentTimeMillis();
+			for (int r=0;r<Nruns-1;r++)
+				engine.deterministicGoal("makeHugeList("+size+",L), "+spec,"[A]");
+			long T1= System.currentTimeMillis();
+			long mS = Math.max(1,(T1-T0)/Nruns);
+			System.out.println("Received "+types[t]+"[] with "+size+" elements in "+mS+" mS ("+(elementBytes[t]*(long)size/1024)*1000/mS+" KB/S)");
+			Object array = (t==0 ? (Object)new byte[size] : (Object)new int[size]);
+			T0= System.currentTimeMillis();
+			for (int r=0;r<Nruns-1;r++)
+				engine.deterministicGoal(spec+", length(L,_)","[A]",new Object[]{array},"[]");
+			T1= System.currentTimeMillis();
+			mS = Math.max(1,(T1-T0)/Nruns);
+			System.out.println("Sent "+types[t]+"[] with "+size+" elements in "+mS+" mS ("+(elementBytes[t]*(long)size/1024)*1000/mS+" KB/S)");
+		}
+	}
+	
 	static int N=250;
 	static int Nruns=4;
 	static int DEPTH = 11; // for tree
@@ -112,6 +171,29 @@ public class PerformanceTester{
 		T1= System.currentTimeMillis();
 		System.out.println("Called minimal deterministicGoal "+(N/10)+" times in "+(T1-T0)/Nruns+" mS");
 		
+		if (engine instanceof AbstractPrologEngine){
+			AbstractPrologEngine E = (AbstractPrologEngine)engine;
+			T0= System.currentTimeMillis();
+			for (int r=0;r<Nruns-1;r++){
+				ArrayList<GoalFromJava> batch = new ArrayList<GoalFromJava>();
+				for(int g=0;g<N/10;g++)
+					batch.add(E.makeGoal("true",null,null,"[]"));
+				for (ResultFromProlog R : E.deterministicGoalBatch(batch))
+					if (!R.succeeded) throw new IPException("FAILED deterministicGoalBatch");
+			}
+			T1= System.currentTimeMillis();
+			System.out.println("Called minimal deterministicGoal "+(N/10)+" times in a batch in "+(T1-T0)/Nruns+" mS");
+		}
+		
+		callbackLatencies(engine,N);
+		if (engine instanceof AbstractPrologEngine){
+			AbstractPrologEngine E = (AbstractPrologEngine)engine;
+			E.setThreadedCallbacks(true);
+			System.out.print("With threaded callbacks: ");
+			callbackLatencies(engine,N);
+			E.setThreadedCallbacks(false);
+		}
+		
 		// engine.setProfiling(true);
 		
 		System.out.println("\n-----list of ints:");
@@ -190,6 +272,15 @@ public class PerformanceTester{
 		javaSerializationTimes("tree",LM); 
 
 
+		if (engine instanceof AbstractPrologEngine){
+			System.out.println("\n-----term transports:");
+			termTransportTimes((AbstractPrologEngine)engine,"buildTermList("+N*10+",L)","list with "+N*10+" terms");
+			termTransportTimes((AbstractPrologEngine)engine,"buildTermTree("+DEPTH+",L)","tree with "+(Math.pow(2,(DEPTH+1))-1)+" nodes");
+		}
+
+		System.out.println("\n-----byte and int arrays:");
+		arrayThroughputs(engine,1024*N);
+
 		System.out.println("\n-----huge string:");
 		specBuilderGoal = "makeHugeList("+(1024*N)+",L), atom_codes(A,L), LM=string(A)";
 		T0= System.currentTimeMillis();
@@ -79,7 +79,7 @@ public class PredicateTableModel implements Serializable, TableModel{
  	public String getColumnName(int columnIndex){
  		if (template==null) return "Arg"+columnIndex;
  		else {
- 			return template.children[columnIndex].toString();
+ 			return template.getChild(columnIndex).toString();
  		}
  	}
    	public int getRowCount(){
@@ -89,6 +89,6 @@ public class PredicateTableModel implements Serializable, TableModel{
   		return arity;
   	}
   	public Object getValueAt(int row, int column){
-  		return tuples[row].children[column];
+  		return tuples[row].getChild(column);
   	}
 }
@@ -0,0 +1,64 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.util;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Canonical String instances for the atoms in TermModel nodes, an alternative to String.intern() which avoids
+contention on the JVM string table. Equal atoms obtained through the same table are the same object, so equals()
+between them succeeds on its first (reference) check, and their hash code (cached by String) is computed once.
+Atoms are kept until the table reaches its capacity, at which point it starts afresh */
+public class AtomTable{
+	/** Shared by all TermModels built from Prolog */
+	public static final AtomTable DEFAULT = new AtomTable(100000);
+	final ConcurrentHashMap<String,String> atoms = new ConcurrentHashMap<String,String>();
+	final int capacity;
+	/** Recently found atoms, indexed by hash code, so atoms in char arrays can be found without a new String; 
+	races among threads merely cause misses */
+	final String[] recent = new String[4096];
+
+	public AtomTable(int capacity){
+		this.capacity = capacity;
+	}
+
+	/** The canonical instance for atom A */
+	public String canonical(String A){
+		String C = atoms.get(A);
+		if (C!=null) return C;
+		if (atoms.size()>=capacity) atoms.clear();
+		C = atoms.putIfAbsent(A,A);
+		return (C==null ? A : C);
+	}
+
+	/** Canonicalizes an atom within chars, avoiding a new String if it was recently found */
+	public String canonical(char[] chars,int start,int length){
+		int h = 0;
+		for (int i=start; i<start+length; i++)
+			h = 31*h+chars[i]; // same as String.hashCode()
+		int slot = (h ^ (h>>>16)) & (recent.length-1);
+		String R = recent[slot];
+		if (R!=null && R.length()==length && R.hashCode()==h && sameChars(R,chars,start)) return R;
+		R = canonical(new String(chars,start,length));
+		recent[slot] = R;
+		return R;
+	}
+	
+	static boolean sameChars(String S,char[] chars,int start){
+		for (int i=0; i<S.length(); i++)
+			if (S.charAt(i)!=chars[start+i]) return false;
+		return true;
+	}
+
+	public int size(){
+		return atoms.size();
+	}
+
+	public void clear(){
+		atoms.clear();
+		for (int i=0; i<recent.length; i++) recent[i] = null;
+	}
+}
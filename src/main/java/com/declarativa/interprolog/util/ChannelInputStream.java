@@ -0,0 +1,66 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.util;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/** Reads a (blocking) channel through a reusable direct buffer, so each socket read brings as much as is available
+rather than the few bytes ObjectInputStream asks for at a time. A single reader thread is assumed. */
+public class ChannelInputStream extends InputStream{
+	final ReadableByteChannel channel;
+	final ByteBuffer buffer;
+
+	public ChannelInputStream(ReadableByteChannel channel){
+		this(channel,64*1024);
+	}
+
+	public ChannelInputStream(ReadableByteChannel channel,int capacity){
+		this.channel = channel;
+		buffer = ByteBuffer.allocateDirect(capacity);
+		buffer.flip(); // empty
+	}
+
+	/** @return false on end of stream */
+	private boolean fill() throws IOException{
+		buffer.clear();
+		try{
+			int n;
+			do n = channel.read(buffer); while (n==0);
+			return n>0;
+		} catch (ClosedChannelException e){
+			throw new SocketException("Socket closed: "+e);
+		} finally{
+			buffer.flip();
+		}
+	}
+
+	public int read() throws IOException{
+		if (!buffer.hasRemaining() && !fill()) return -1;
+		return buffer.get() & 0xFF;
+	}
+
+	public int read(byte[] b,int off,int len) throws IOException{
+		if (len==0) return 0;
+		if (!buffer.hasRemaining() && !fill()) return -1;
+		int n = Math.min(len,buffer.remaining());
+		buffer.get(b,off,n);
+		return n;
+	}
+
+	public int available(){
+		return buffer.remaining();
+	}
+
+	/** Does nothing: the channel belongs to whoever created this */
+	public void close(){
+	}
+}
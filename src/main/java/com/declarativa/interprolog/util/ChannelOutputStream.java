@@ -0,0 +1,117 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.util;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/** Accumulates bytes in a reusable direct buffer, and writes them to a channel only on sendBytes() or sendMessage();
+the latter prefixes them with their count, PrologOutputObjectStream style, in the same (gathering) write.
+So serialized objects go straight from the ObjectOutputStream to the socket without further copies.
+Not thread safe: users must synchronize on this object from the start of a message to its sending. */
+public class ChannelOutputStream extends OutputStream{
+	/** Buffers grown beyond this are dropped after sending, to release their memory */
+	public static int MAX_RETAINED_CAPACITY = 4*1024*1024;
+	final GatheringByteChannel channel;
+	final int initialCapacity;
+	final ByteBuffer header = ByteBuffer.allocateDirect(4);
+	ByteBuffer payload;
+	final ByteBuffer[] gather = new ByteBuffer[2];
+
+	public ChannelOutputStream(GatheringByteChannel channel){
+		this(channel,64*1024);
+	}
+
+	public ChannelOutputStream(GatheringByteChannel channel,int initialCapacity){
+		this.channel = channel;
+		this.initialCapacity = initialCapacity;
+		payload = ByteBuffer.allocateDirect(initialCapacity);
+		header.flip(); // empty
+		gather[0] = header;
+	}
+
+	/** Number of bytes written since the last bytes or message sent */
+	public int size(){
+		return payload.position();
+	}
+
+	private void ensureRemaining(int n){
+		if (payload.remaining()>=n) return;
+		ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(payload.capacity()*2,payload.position()+n));
+		payload.flip();
+		bigger.put(payload);
+		payload = bigger;
+	}
+
+	public void write(int b){
+		ensureRemaining(1);
+		payload.put((byte)b);
+	}
+
+	public void write(byte[] b,int off,int len){
+		ensureRemaining(len);
+		payload.put(b,off,len);
+	}
+
+	/** Writes the pending bytes, preceded by their count as a 4 byte (big endian) integer */
+	public void sendMessage() throws IOException{
+		header.clear();
+		header.putInt(payload.position());
+		header.flip();
+		payload.flip();
+		gather[1] = payload;
+		try{
+			write(gather,header.remaining()+payload.remaining());
+		} finally{
+			recycle();
+		}
+	}
+
+	/** Does nothing, so ObjectOutputStream.flush() does not break messages: see sendMessage() and sendBytes() */
+	public void flush(){
+	}
+
+	/** Writes the pending bytes as they are */
+	public void sendBytes() throws IOException{
+		if (payload.position()==0) return;
+		header.clear();
+		header.flip(); // nothing
+		payload.flip();
+		gather[1] = payload;
+		try{
+			write(gather,payload.remaining());
+		} finally{
+			recycle();
+		}
+	}
+
+	private void recycle(){
+		if (payload.capacity()>MAX_RETAINED_CAPACITY) payload = ByteBuffer.allocateDirect(initialCapacity);
+		else payload.clear();
+	}
+
+	private void write(ByteBuffer[] buffers,long n) throws IOException{
+		// An interrupted thread would close the channel, and with it the engine; the interrupt is kept for later
+		boolean interrupted = Thread.interrupted();
+		try{
+			while (n>0)
+				n -= channel.write(buffers);
+		} catch (ClosedChannelException e){
+			throw new SocketException("Socket closed: "+e);
+		} finally{
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Does nothing: the channel belongs to whoever created this, and this may be reused after ObjectOutputStream.close() */
+	public void close(){
+	}
+}
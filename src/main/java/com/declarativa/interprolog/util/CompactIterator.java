@@ -1,9 +1,12 @@
 package com.declarativa.interprolog.util;
 
 import java.util.Iterator;
+
+import com.declarativa.interprolog.SolutionIterator;
 /**
  * A wrapper for an Iterator, to use a single call - Object next() - to obtain the ennumeration. 
- * Items can NOT be null.
+ * Items can NOT be null. next() blocks while the wrapped iterator does, e.g. a SolutionIterator whose next solution is still being computed; 
+ * it is synchronized, so concurrent clients never see a hasNext()/next() pair interleaved.
  * E.g. use from Prolog with
  java('com.declarativa.interprolog.util.CompactIterator',MyIt,'CompactIterator'(Iterator)),
  java(MyIt,OneResult,next),
@@ -19,8 +22,13 @@ public class CompactIterator {
 		this.it = it;
 	}
 	/** Returns null if no more items */
-	public Object next(){
+	public synchronized Object next(){
 		if (it.hasNext()) return it.next();
 		else return null;
 	}
+	/** Gives up on any remaining items; if wrapping a SolutionIterator, its goal is cancelled */
+	public synchronized void close(){
+		if (it instanceof SolutionIterator) 
+			((SolutionIterator)it).cancel();
+	}
 }
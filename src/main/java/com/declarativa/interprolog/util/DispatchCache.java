@@ -0,0 +1,213 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.util;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.declarativa.interprolog.AbstractPrologEngine;
+
+/** Remembers the methods and constructors found for javaMessage, keyed by target class, method name and
+argument classes, so the (possibly linear) search in AbstractPrologEngine.findMethod and findConstructor happens only once per call signature.
+Each is kept as a MethodHandle adapted to a (target,arguments) call, including the collection of variable arity arguments.
+Must be invalidated if classes may change their meaning, e.g. after AbstractPrologEngine.addSoftwareLibrary.
+*/
+public class DispatchCache {
+	static final int INSTANCE = 0, STATIC = 1, CONSTRUCTOR = 2;
+	/** Incremented to invalidate all caches */
+	private static volatile int globalGeneration = 0;
+	private int generation = globalGeneration;
+	private final ConcurrentHashMap<Key,Invoker> invokers = new ConcurrentHashMap<Key,Invoker>();
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	/** In primitive widening order, except for char, see convertible() */
+	private static final List<Class<?>> WRAPPERS = Arrays.<Class<?>>asList(Byte.class,Short.class,Character.class,Integer.class,Long.class,Float.class,Double.class);
+	private static final List<Class<?>> PRIMITIVES = Arrays.<Class<?>>asList(byte.class,short.class,char.class,int.class,long.class,float.class,double.class);
+
+	static class Key{
+		final Class<?> targetClass;
+		final String name;
+		final int kind;
+		final Class<?>[] argumentClasses;
+		final int hash;
+		Key(Class<?> targetClass,String name,int kind,Class<?>[] argumentClasses){
+			this.targetClass = targetClass;
+			this.name = name;
+			this.kind = kind;
+			this.argumentClasses = argumentClasses;
+			hash = (targetClass.hashCode()*31 + name.hashCode())*31 + Arrays.hashCode(argumentClasses) + kind;
+		}
+		public int hashCode(){
+			return hash;
+		}
+		public boolean equals(Object x){
+			if (!(x instanceof Key)) return false;
+			Key k = (Key)x;
+			return k.targetClass==targetClass && k.kind==kind && k.name.equals(name) && Arrays.equals(k.argumentClasses,argumentClasses);
+		}
+	}
+
+	/** A resolved method or constructor, ready to invoke */
+	public static class Invoker{
+		final Method method;
+		final Constructor<?> constructor;
+		/** (Object target,Object[] arguments)Object, or null if Method.invoke or Constructor.newInstance must be used */
+		final MethodHandle handle;
+		/** Type of each argument expected by handle, with variable arity parameters already expanded */
+		final Class<?>[] argumentTypes;
+
+		Invoker(Method method,Constructor<?> constructor,MethodHandle handle,Class<?>[] argumentTypes){
+			this.method = method;
+			this.constructor = constructor;
+			this.handle = handle;
+			this.argumentTypes = argumentTypes;
+		}
+
+		/** The method invoked, or null for constructors */
+		public Method getMethod(){
+			return method;
+		}
+
+		/** @param target ignored for static methods and constructors
+		 * @throws IllegalArgumentException if the arguments do not fit the parameters, as with Method.invoke
+		 * @throws InvocationTargetException wrapping any exception thrown by the invoked code, as with Method.invoke */
+		public Object invoke(Object target,Object[] arguments) throws Exception{
+			if (handle!=null) {
+				// Failures adapting the arguments must not pass for exceptions of the invoked code:
+				if (method!=null && !java.lang.reflect.Modifier.isStatic(method.getModifiers())){
+					if (target==null) throw new NullPointerException("null target for "+method);
+					if (!method.getDeclaringClass().isInstance(target))
+						throw new IllegalArgumentException("object is not an instance of declaring class");
+				}
+				if (arguments.length!=argumentTypes.length) throw new IllegalArgumentException("wrong number of arguments");
+				for (int a=0; a<arguments.length; a++)
+					if (!convertible(arguments[a],argumentTypes[a])) throw new IllegalArgumentException("argument type mismatch");
+				try{
+					return (Object)handle.invokeExact(target,arguments);
+				} catch (Throwable t){
+					throw new InvocationTargetException(t);
+				}
+			}
+			if (constructor!=null) return constructor.newInstance(arguments);
+			Object[] readyArgs;
+			// Preprocess arguments to deal with methods with variant parameters
+			if (method.isVarArgs()){
+				readyArgs = new Object[method.getParameterTypes().length];
+				for (int a=0; a<readyArgs.length-1; a++)
+					readyArgs[a] = arguments[a];
+				Object[] variantArgs = new Object[arguments.length-method.getParameterTypes().length+1];
+				for (int a=0; a<variantArgs.length; a++)
+					variantArgs[a] = arguments[a+readyArgs.length-1];
+				readyArgs[readyArgs.length-1] = variantArgs;
+			} else readyArgs = arguments;
+			if (java.lang.reflect.Modifier.isStatic(method.getModifiers())) return method.invoke(null,readyArgs);
+			else return method.invoke(target,readyArgs);
+		}
+	}
+
+	/** Whether Method.invoke would accept x for a parameter of the given type, unboxing and widening as needed */
+	static boolean convertible(Object x,Class<?> type){
+		if (!type.isPrimitive()) return x==null || type.isInstance(x);
+		if (x==null) return false;
+		if (type==boolean.class) return x instanceof Boolean;
+		int from = WRAPPERS.indexOf(x.getClass()), to = PRIMITIVES.indexOf(type);
+		if (from==-1) return false;
+		// nothing widens to char, and char widens to int onwards only:
+		return from==to || (type!=char.class && from<to);
+	}
+
+	/** Forgets all methods and constructors found, in all caches */
+	public static void invalidateAll(){
+		globalGeneration++;
+	}
+
+	/** Forgets all methods and constructors found */
+	public void invalidate(){
+		invokers.clear();
+	}
+
+	public int size(){
+		return invokers.size();
+	}
+
+	private Invoker cached(Key key){
+		if (generation!=globalGeneration){
+			generation = globalGeneration;
+			invokers.clear();
+		}
+		return invokers.get(key);
+	}
+
+	/** @param argumentClasses as in AbstractPrologEngine.findMethod, null for null arguments */
+	public Invoker method(Class<?> targetClass,String name,Class<?>[] argumentClasses) throws NoSuchMethodException{
+		return method(targetClass,name,argumentClasses,INSTANCE);
+	}
+
+	public Invoker staticMethod(Class<?> targetClass,String name,Class<?>[] argumentClasses) throws NoSuchMethodException{
+		return method(targetClass,name,argumentClasses,STATIC);
+	}
+
+	private Invoker method(Class<?> targetClass,String name,Class<?>[] argumentClasses,int kind) throws NoSuchMethodException{
+		Key key = new Key(targetClass,name,kind,argumentClasses.clone());
+		Invoker invoker = cached(key);
+		if (invoker!=null) return invoker;
+		Method method = AbstractPrologEngine.findMethod(targetClass,name,argumentClasses);
+		method.setAccessible(true);
+		MethodHandle handle = null;
+		int arity = argumentClasses.length;
+		Class<?>[] argumentTypes = method.getParameterTypes();
+		if (method.isVarArgs()){
+			int fixed = argumentTypes.length-1;
+			Class<?> variant = argumentTypes[fixed].getComponentType();
+			argumentTypes = Arrays.copyOf(argumentTypes,arity);
+			for (int a=fixed; a<arity; a++)
+				argumentTypes[a] = variant;
+		}
+		try{
+			handle = LOOKUP.unreflect(method);
+			if (method.isVarArgs()){
+				int fixed = method.getParameterTypes().length-1;
+				handle = handle.asFixedArity().asCollector(method.getParameterTypes()[fixed],arity-fixed);
+			}
+			handle = handle.asType(MethodType.genericMethodType(handle.type().parameterCount()));
+			if (java.lang.reflect.Modifier.isStatic(method.getModifiers()))
+				handle = MethodHandles.dropArguments(handle,0,Object.class);
+			handle = handle.asSpreader(Object[].class,arity);
+		} catch (IllegalAccessException e){
+			handle = null;
+		}
+		invoker = new Invoker(method,null,handle,argumentTypes);
+		invokers.put(key,invoker);
+		return invoker;
+	}
+
+	public Invoker constructor(Class<?> targetClass,Class<?>[] argumentClasses) throws NoSuchMethodException{
+		Key key = new Key(targetClass,"<init>",CONSTRUCTOR,argumentClasses.clone());
+		Invoker invoker = cached(key);
+		if (invoker!=null) return invoker;
+		Constructor<?> constructor = AbstractPrologEngine.findConstructor(targetClass,argumentClasses);
+		constructor.setAccessible(true);
+		MethodHandle handle = null;
+		try{
+			handle = LOOKUP.unreflectConstructor(constructor);
+			handle = handle.asType(MethodType.genericMethodType(handle.type().parameterCount()));
+			handle = MethodHandles.dropArguments(handle,0,Object.class);
+			handle = handle.asSpreader(Object[].class,argumentClasses.length);
+		} catch (IllegalAccessException e){
+			handle = null;
+		}
+		invoker = new Invoker(null,constructor,handle,constructor.getParameterTypes());
+		invokers.put(key,invoker);
+		return invoker;
+	}
+}
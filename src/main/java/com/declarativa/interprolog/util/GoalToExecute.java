@@ -7,16 +7,27 @@ Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
 */
 package com.declarativa.interprolog.util;
 
-/** A goal scheduled to execute in Prolog whenever possible */
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** A goal scheduled to execute in Prolog whenever possible. 
+Its state is guarded by a ReentrantLock rather than by this object's monitor, so a caller blocked in waitForResult() 
+does not pin its carrier thread if it is a virtual thread (Java 21+), and javaMessages handed to it run without holding the lock */
 public class GoalToExecute{
 	private GoalFromJava goal;
 	private ResultFromProlog result;
-	private boolean executing;
-	private boolean ended;
+	private volatile boolean executing;
+	private volatile boolean ended;
 	private boolean firstGoalStatus = false;
 	// something to do in the creator thread
 	private Runnable todo=null;
 	private Thread callerThread;
+	/** Created on demand, to follow this goal asynchronously */
+	private CompletableFuture<ResultFromProlog> resultFuture = null;
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Signalled when there is a result or something to do */
+	private final Condition changed = lock.newCondition();
 	
 	public GoalToExecute(GoalFromJava goal){
 		this(goal,Thread.currentThread());
@@ -32,48 +43,86 @@ public class GoalToExecute{
 		return callerThread;
 	}
 	
-	public synchronized void executeInThread(Runnable r){
-		if(todo!=null||!executing/* comented because of SubprocessEngine:||firstGoalStatus*/||result!=null || hasEnded()){
-			System.err.println("bad");
-			System.err.println("r=="+r);
-			System.err.println("todo=="+todo);
-			System.err.println("executing=="+executing);
-			System.err.println("firstGoalStatus=="+firstGoalStatus);
-			System.err.println("result=="+result);
-			System.err.println("hasEnded()=="+hasEnded());
-			throw new IPException("bad execute");
+	public void executeInThread(Runnable r){
+		lock.lock();
+		try{
+			if(todo!=null||!executing/* comented because of SubprocessEngine:||firstGoalStatus*/||result!=null || hasEnded()){
+				System.err.println("bad");
+				System.err.println("r=="+r);
+				System.err.println("todo=="+todo);
+				System.err.println("executing=="+executing);
+				System.err.println("firstGoalStatus=="+firstGoalStatus);
+				System.err.println("result=="+result);
+				System.err.println("hasEnded()=="+hasEnded());
+				throw new IPException("bad execute");
+			}
+			todo=r;
+			changed.signalAll();
+		} finally{
+			lock.unlock();
 		}
-		todo=r;
-		notifyAll();
 	}
 	
 	/** Obtain result for a Prolog goal, blocking until it is available; meanwhile it will execute
 	Runnables if so requested */
-	public synchronized ResultFromProlog waitForResult(){
-		if (ended) return result;
-		while(true){
-			if(!ended && todo!=null) {
-				todo.run();
-				todo=null;
-				//notifyAll();
+	public ResultFromProlog waitForResult(){
+		lock.lock();
+		try{
+			while(true){
+				if(!ended && todo!=null) {
+					// cleared before running, as the Runnable's result may make Prolog send the next javaMessage before it returns
+					Runnable r = todo;
+					todo=null;
+					lock.unlock();
+					try{
+						r.run();
+					} finally{
+						lock.lock();
+					}
+					continue; // another Runnable may have arrived meanwhile
+				}
+				if(result!=null || ended) break;
+				try { changed.await();}
+				catch(InterruptedException e){throw new IPException("Unexpected:"+e);}
+				// System.out.println("waitForResult loop: result=="+result+",todo=="+todo);
+			}
+			return result; 
+		} finally{
+			lock.unlock();
+		}
+	}
+	
+	/** A future completed with the result when this goal ends, as an alternative to waitForResult(). 
+	Its (synchronous) dependent stages execute in the thread setting the result, typically the engine's Prolog handler */
+	public CompletableFuture<ResultFromProlog> getResultFuture(){
+		lock.lock();
+		try{
+			if (resultFuture==null){
+				resultFuture = new CompletableFuture<ResultFromProlog>();
+				if (ended) resultFuture.complete(result);
 			}
-			if(result!=null) break;
-			try { wait();}
-			catch(InterruptedException e){throw new IPException("Unexpected:"+e);}
-			// System.out.println("waitForResult loop: result=="+result+",todo=="+todo);
-			if (result==null && todo==null) throw new IPException("Inconsistency in GoalToExecute");
+			return resultFuture;
+		} finally{
+			lock.unlock();
 		}
-		return result; 
 	}
 	
-	public synchronized void setResult(ResultFromProlog result){
-		/* This now is called legitimately when dealing with "meta syntax" errors in firstGoal
-		if (this.result!=null || hasEnded() || todo!=null) {
-			throw new IPException("Inconsistency in GoalToExecute");
-		}*/
-		this.result=result;
-		ended=true;
-		notifyAll();
+	public void setResult(ResultFromProlog result){
+		CompletableFuture<ResultFromProlog> future;
+		lock.lock();
+		try{
+			/* This now is called legitimately when dealing with "meta syntax" errors in firstGoal
+			if (this.result!=null || hasEnded() || todo!=null) {
+				throw new IPException("Inconsistency in GoalToExecute");
+			}*/
+			this.result=result;
+			ended=true;
+			changed.signalAll();
+			future = resultFuture;
+		} finally{
+			lock.unlock();
+		}
+		if (future!=null) future.complete(result);
 	}
 	
 	public boolean wasInterrupted(){
@@ -85,19 +134,27 @@ public class GoalToExecute{
 	}
 
 	/** Used on the InterProlog Java side to "cascade" an interrupt over pending goals to execute */
-	public synchronized void interrupt(){
+	public void interrupt(){
 		raiseError("interrupted");
 	}
 	
 	/** Used on the InterProlog Java side to "cascade" an abort over pending goals to execute */
-	public synchronized void abort(){
+	public void abort(){
 		raiseError("aborted");
 	}
 	
 	private void raiseError(String s){
-		if (result==null) result = new ResultFromProlog(-1,false,0,s,false);
-		ended=true;
-		notifyAll();
+		CompletableFuture<ResultFromProlog> future;
+		lock.lock();
+		try{
+			if (result==null) result = new ResultFromProlog(-1,false,0,s,false);
+			ended=true;
+			changed.signalAll();
+			future = resultFuture;
+		} finally{
+			lock.unlock();
+		}
+		if (future!=null) future.complete(result);
 	}
 	
 	public GoalFromJava getGoal(){ return goal;}
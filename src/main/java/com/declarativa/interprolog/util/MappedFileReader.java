@@ -0,0 +1,96 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.util;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/** Reads a file of any size by mapping it into memory a window at a time, and decoding its bytes as they're needed.
+So memory use depends only on the window size, not on the file's. Not thread safe. */
+public class MappedFileReader extends Reader{
+	/** Bytes mapped at a time */
+	public static int WINDOW_SIZE = 32*1024*1024;
+	final RandomAccessFile file;
+	final FileChannel channel;
+	final long size;
+	final CharsetDecoder decoder;
+	/** File position of the current window */
+	long windowStart = 0;
+	MappedByteBuffer window = null;
+	final CharBuffer chars = CharBuffer.allocate(8*1024);
+	boolean decodedAll = false;
+
+	public MappedFileReader(File F) throws IOException{
+		this(F,Charset.defaultCharset());
+	}
+
+	public MappedFileReader(File F,Charset charset) throws IOException{
+		file = new RandomAccessFile(F,"r");
+		channel = file.getChannel();
+		size = channel.size();
+		decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		chars.flip(); // empty
+	}
+
+	/** @return false when all chars were read */
+	private boolean fill() throws IOException{
+		if (decodedAll) return false;
+		chars.clear();
+		try{
+			while (chars.position()==0 && !decodedAll){
+				if (window==null || !window.hasRemaining()) mapNext();
+				boolean lastWindow = windowStart+window.limit()>=size;
+				CoderResult CR = decoder.decode(window,chars,lastWindow);
+				if (CR.isError()) CR.throwException();
+				if (lastWindow && !window.hasRemaining()){
+					decoder.flush(chars);
+					decodedAll = true;
+				} else if (CR.isUnderflow() && window.hasRemaining())
+					mapNext(); // a char split between windows
+			}
+		} catch (CharacterCodingException e){
+			throw new IPException("Bad characters in file:"+e);
+		} finally{
+			chars.flip();
+		}
+		return chars.hasRemaining();
+	}
+
+	/** Maps the window starting at the first byte not yet decoded */
+	private void mapNext() throws IOException{
+		if (window!=null) windowStart += window.position();
+		window = channel.map(FileChannel.MapMode.READ_ONLY,windowStart,Math.min(WINDOW_SIZE,size-windowStart));
+	}
+
+	public int read() throws IOException{
+		if (!chars.hasRemaining() && !fill()) return -1;
+		return chars.get();
+	}
+
+	public int read(char[] cbuf,int off,int len) throws IOException{
+		if (len==0) return 0;
+		if (!chars.hasRemaining() && !fill()) return -1;
+		int n = Math.min(len,chars.remaining());
+		chars.get(cbuf,off,n);
+		return n;
+	}
+
+	public void close() throws IOException{
+		window = null;
+		file.close();
+	}
+}
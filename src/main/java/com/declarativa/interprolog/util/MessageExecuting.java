@@ -13,7 +13,7 @@ public class MessageExecuting implements Runnable{
 	AbstractPrologEngine engine;
 	private MessageFromProlog m;
 	private ResultFromJava result;
-	private boolean ended;
+	private volatile boolean ended;
 	/** Estimated thread */
 	private Thread callingThread;
 	/** Thread actually executing this work */
@@ -35,11 +35,16 @@ public class MessageExecuting implements Runnable{
 		return executor;
 	}
 	
-	public synchronized void setResult(ResultFromJava result){
-		if (this.result!=null) // throw new IPException("Inconsistency in MessageExecuting");
-			return;
-		this.result=result;
-		ended = true;
+	/** Records the result and wakes up the engine's Prolog handler, so that it can be returned to Prolog */
+	public void setResult(ResultFromJava result){
+		synchronized(this){
+			if (this.result!=null) // throw new IPException("Inconsistency in MessageExecuting");
+				return;
+			this.result=result;
+			ended = true;
+		}
+		// outside our monitor, to avoid nesting locks
+		engine.workAvailable();
 	}
 	
 	public void run(){
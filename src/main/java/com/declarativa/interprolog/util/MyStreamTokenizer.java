@@ -52,8 +52,9 @@ import java.io.*;
  * @since   JDK1.0
  * Modified for InterProlog so that it remembers if a number token has or not a decimal point in it; 
  * also removed deprecated constructor; and fixed a bug on greedy escaping
+ * @deprecated InterProlog no longer uses this class: terms are parsed with {@link TermLexer}
  */
-
+@Deprecated
 public class MyStreamTokenizer {
 
     /* Only one of these will be non-null */
@@ -1,4 +1,4 @@
-/* 
+/*
 Author: Miguel Calejo
 Contact: info@interprolog.com, www.interprolog.com
 Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
@@ -6,116 +6,266 @@ Use and distribution, without any warranties, under the terms of the
 Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
 */
 package com.declarativa.interprolog.util;
-import java.util.Vector;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-/** Remembers a set of Java objects, allowing access to them by an (integer) ID */
+/** Remembers a set of Java objects, allowing access to them by an (integer) ID.
+Objects are found by identity (not equals()) through a hash index, and the IDs of unregistered objects are reused.
+By default registered objects are strongly referenced; with WEAK_REFERENCES or SOFT_REFERENCES the registry does not prevent
+their garbage collection, and the IDs of collected objects are kept until takeReleasedIDs() is called,
+so whoever holds them (Prolog) can be told before they are reused.
+getRealJavaObject does not lock the registry. */
 public class ObjectRegistry{
-	Vector<Object> objects;
-	
+	public static final int STRONG_REFERENCES = 0;
+	public static final int WEAK_REFERENCES = 1;
+	public static final int SOFT_REFERENCES = 2;
+
+	/** Registered objects (or IDReferences to them) indexed by ID, null for free slots */
+	private volatile AtomicReferenceArray<Object> slots;
+	/** identityHashCode of each slot's object */
+	private int[] hashes;
+	/** Next ID in the same bucket, or in the free list */
+	private int[] next;
+	/** First ID in each bucket, or -1 */
+	private int[] buckets;
+	/** IDs below this have been used; volatile as getRealJavaObject checks it without locking */
+	private volatile int top;
+	private int count;
+	private int freeList;
+	private int referenceKind = STRONG_REFERENCES;
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	/** IDs of collected objects, not yet taken */
+	private int[] released = new int[16];
+	private int releasedCount = 0;
+
+	interface IDReference{
+		int getID();
+		Object get();
+	}
+	static class WeakIDReference extends WeakReference<Object> implements IDReference{
+		final int ID;
+		WeakIDReference(Object x,int ID,ReferenceQueue<Object> queue){
+			super(x,queue); this.ID=ID;
+		}
+		public int getID(){return ID;}
+	}
+	static class SoftIDReference extends SoftReference<Object> implements IDReference{
+		final int ID;
+		SoftIDReference(Object x,int ID,ReferenceQueue<Object> queue){
+			super(x,queue); this.ID=ID;
+		}
+		public int getID(){return ID;}
+	}
+
 	public ObjectRegistry(){
-		objects = new Vector<Object>();
+		this(STRONG_REFERENCES);
 	}
-	
-	public void clear(){
-		objects.clear();
+
+	public ObjectRegistry(int referenceKind){
+		checkReferenceKind(referenceKind);
+		this.referenceKind = referenceKind;
+		clear();
+	}
+
+	public synchronized void clear(){
+		top = 0;
+		slots = new AtomicReferenceArray<Object>(64);
+		hashes = new int[64];
+		next = new int[64];
+		buckets = new int[64];
+		Arrays.fill(buckets,-1);
+		count = 0; freeList = -1;
+		releasedCount = 0;
+		while(queue.poll()!=null) {}
 	}
-	
+
+	static void checkReferenceKind(int kind){
+		if (kind<STRONG_REFERENCES || kind>SOFT_REFERENCES)
+			throw new IPException("Bad reference kind in ObjectRegistry:"+kind);
+	}
+
+	public synchronized int getReferenceKind(){
+		return referenceKind;
+	}
+
+	/** Changes how the objects, including those already registered, are referenced */
+	public synchronized void setReferenceKind(int kind){
+		checkReferenceKind(kind);
+		if (kind==referenceKind) return;
+		referenceKind = kind;
+		for (int ID=0;ID<top;ID++){
+			Object x = deref(slots.get(ID));
+			if (x!=null) slots.set(ID,wrap(x,ID));
+		}
+		expunge();
+	}
+
 	public Object getRealJavaObject(InvisibleObject o){
 		return getRealJavaObject(o.ID);
 	}
-	
+
 	public Object getRealJavaObject(int ID){
-		if (ID<0 | ID>objects.size()-1) 
+		// top before slots, which grow before top does:
+		int used = top;
+		AtomicReferenceArray<Object> S = slots;
+		if (ID<0 | ID>used-1 | ID>S.length()-1)
 			throw new RuntimeException("Bad object ID in ObjectRegistry");
-		return objects.elementAt(ID);
+		return deref(S.get(ID));
 	}
-	
+
 	public Object makeInvisible(Object x){
 		return new InvisibleObject(registerJavaObject(x));
 	}
-	
+
 	public synchronized int registerJavaObject(Object x){
 		if (x==null)
 			throw new IPException("Null object in ObjectRegistry");
-		int i = getObjectID(x);
+		expunge();
+		int h = System.identityHashCode(x);
+		int i = getObjectID(x,h);
 		if (i>=0) return i;
-		objects.addElement(x);
-		return objects.size()-1;
-	}
-	
-	private int getObjectID(Object obj){
-            // commented next line because there might be null elements in the 
-            // registry that are there as a result of unregistering
-		//return objects.indexOf(obj); 
-            
-            if (obj == null) {
-                for (int i = 0 ; i < objects.size() ; i++)
-                    if (objects.elementAt(i)==null) // weird.... someone attempting to reuse space??
-                        return i;
-            } else {
-                for (int i = 0 ; i < objects.size() ; i++){
-                    Object elem = objects.elementAt(i);
-                    if(elem != null){ // this line is not there in Vector.indexOf
-                        // if (obj.equals(elem)) would not work because some complex objects have abstracting equals()
-                        if (obj==elem)
-                            return i;
-                    }
-                }
-            }
-            return -1;
+		if (freeList>=0){
+			i = freeList;
+			freeList = next[i];
+		} else {
+			if (top==hashes.length) grow();
+			i = top++;
+		}
+		hashes[i] = h;
+		int b = h & (buckets.length-1);
+		next[i] = buckets[b];
+		buckets[b] = i;
+		slots.set(i,wrap(x,i));
+		if (++count > buckets.length*3/4) rehash();
+		return i;
 	}
-        
+
+	private Object wrap(Object x,int ID){
+		if (referenceKind==WEAK_REFERENCES) return new WeakIDReference(x,ID,queue);
+		else if (referenceKind==SOFT_REFERENCES) return new SoftIDReference(x,ID,queue);
+		else return x;
+	}
+
+	private static Object deref(Object slot){
+		if (slot instanceof IDReference) return ((IDReference)slot).get();
+		else return slot;
+	}
+
+	private int getObjectID(Object obj,int h){
+		for (int i=buckets[h & (buckets.length-1)]; i>=0; i=next[i])
+			// if (obj.equals(elem)) would not work because some complex objects have abstracting equals()
+			if (hashes[i]==h && deref(slots.get(i))==obj) return i;
+		return -1;
+	}
+
+	private void grow(){
+		int n = hashes.length*2;
+		AtomicReferenceArray<Object> S = new AtomicReferenceArray<Object>(n);
+		for (int i=0;i<top;i++)
+			S.set(i,slots.get(i));
+		hashes = Arrays.copyOf(hashes,n);
+		next = Arrays.copyOf(next,n);
+		slots = S;
+	}
+
+	private void rehash(){
+		buckets = new int[buckets.length*2];
+		Arrays.fill(buckets,-1);
+		for (int i=0;i<top;i++){
+			if (slots.get(i)==null) continue; // in the free list
+			int b = hashes[i] & (buckets.length-1);
+			next[i] = buckets[b];
+			buckets[b] = i;
+		}
+	}
+
+	/** Removes ID from its bucket, and frees its slot if recycle */
+	private void remove(int ID,boolean recycle){
+		int b = hashes[ID] & (buckets.length-1);
+		if (buckets[b]==ID) buckets[b] = next[ID];
+		else for (int i=buckets[b]; i>=0; i=next[i])
+			if (next[i]==ID) {
+				next[i] = next[ID];
+				break;
+			}
+		slots.set(ID,null);
+		count--;
+		if (recycle) {
+			next[ID] = freeList;
+			freeList = ID;
+		} else next[ID] = -1;
+	}
+
+	/** Forgets the objects that were garbage collected, remembering their IDs for takeReleasedIDs() */
+	private void expunge(){
+		Reference<?> R;
+		while((R=queue.poll())!=null){
+			int ID = ((IDReference)R).getID();
+			if (slots.get(ID)!=R) continue; // already unregistered
+			remove(ID,false);
+			if (releasedCount==released.length) released = Arrays.copyOf(released,releasedCount*2);
+			released[releasedCount++] = ID;
+		}
+	}
+
+	/** Returns the IDs of objects garbage collected since the previous call, which from now on may be reused for other objects */
+	public synchronized int[] takeReleasedIDs(){
+		expunge();
+		int[] result = Arrays.copyOf(released,releasedCount);
+		for (int ID:result){
+			next[ID] = freeList;
+			freeList = ID;
+		}
+		releasedCount = 0;
+		return result;
+	}
+
+	/** Number of objects currently registered (including those collected but not yet noticed) */
+	public synchronized int size(){
+		expunge();
+		return count;
+	}
+
         public synchronized boolean unregisterJavaObject(int ID){
-            if ((ID < 0) || (ID > objects.size()-1)) {
+            if ((ID < 0) || (ID > top-1) || slots.get(ID)==null) {
                 return false;
             } else {
-                // objects.remove(index) would not work since that operation
-                // shifts any subsequent elements to the left (subtracts one from their indices)
-                objects.setElementAt(null, ID);
+                remove(ID,true);
                 return true;
             }
         }
-        
+
         public synchronized boolean unregisterJavaObject(Object obj){
             boolean found = false;
             if (obj != null){
-                int index = getObjectID(obj);
+                expunge();
+                int index = getObjectID(obj,System.identityHashCode(obj));
                 if(index >= 0){
-                    // objects.remove(index) would not work since that operation
-                    // shifts any subsequent elements to the left (subtracts one from their indices)
-                    objects.setElementAt(null, index);
+                    remove(index,true);
                     found = true;
                 }
             }
             return found;
         }
-        
+
         public synchronized boolean unregisterJavaObjects(Class<?> cls){
             boolean found = false;
             if (cls != null){
+                expunge();
                 String className = cls.getName();
-                for(int iterator = 0; iterator < objects.size(); iterator++){
-                    Object currentObject = objects.elementAt(iterator);
+                for(int iterator = 0; iterator < top; iterator++){
+                    Object currentObject = deref(slots.get(iterator));
                     if(currentObject != null){
                         if(currentObject.getClass().getName().equals(className)){
-                            objects.setElementAt(null, iterator);
+                            remove(iterator,true);
                             found = true;
                         }
                     }
                 }
-                
-                // discard null elements in the end of the object registry
-                // not sure that it is a good idea - on one hand, if people
-                // do not program clean and still refer to the old
-                // objects, they will get null pointer exception instead of
-                // unpredicatble results. On the other hand, the registry 
-                // might become very big and slow too soon. May be this
-                // part should go into separate method.
-               /* int newSize;
-                for(newSize = objects.size(); newSize > 0; newSize--){
-                    if(objects.elementAt(newSize - 1) != null) break;
-                }
-                objects.setSize(newSize); */
             }
             return found;
 	}
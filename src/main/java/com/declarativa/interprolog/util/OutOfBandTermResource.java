@@ -8,6 +8,7 @@ Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
 
 package com.declarativa.interprolog.util;
 import java.io.*;
+import java.nio.charset.Charset;
 import com.declarativa.interprolog.*;
 
 public class OutOfBandTermResource {
@@ -26,7 +27,14 @@ public class OutOfBandTermResource {
 		return engine.unescapedFilePath("'"+resource.getAbsolutePath()+"'");
 	}
 	public TermModel[] getTermList(){
-		return InitiallyFlatTermModel.getTermList(resource);
+		return InitiallyFlatTermModel.getTermList(resource,interpretEscapes());
+	}
+	/** Lazily parses the list, for resources too large to hold in memory at once; close the iterator if not consuming all elements */
+	public InitiallyFlatTermModel.TermListIterator iterateTermList(){
+		return InitiallyFlatTermModel.iterateTermList(resource,Charset.defaultCharset(),interpretEscapes());
+	}
+	private boolean interpretEscapes(){
+		return engine instanceof AbstractPrologEngine && ((AbstractPrologEngine)engine).isInterpretingEscapes();
 	}
 	public File getFile(){
 		return resource;
@@ -12,6 +12,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Vector;
 
 /** An object consuming input from a stream, analyzing it and sending messages to a list 
@@ -26,6 +27,10 @@ public class OutputHandler extends Thread {
 	String originStd;
 	final StringBuffer buffer = new StringBuffer();
 	private Charset charset;
+	/** Finds the patterns of all Recognizer listeners in a single pass over each buffer; null if there are none, 
+	or listeners changed since it was built */
+	private PatternAutomaton automaton = null;
+	private boolean automatonValid = false;
 	
 	public OutputHandler(InputStream s,OutputStream debugStream,String originStd){
 		super("OutputHandler for "+originStd);
@@ -49,9 +54,27 @@ public class OutputHandler extends Thread {
 	
 	public synchronized void addOutputListener(OutputListener ol){
 		listeners.addElement(ol);
+		automatonValid = false;
 	}
 	public synchronized void removeOutputListener(OutputListener ol){
 		listeners.removeElement(ol);
+		automatonValid = false;
+	}
+	
+	static boolean isPatternRecognizer(OutputListener ol){
+		return ol instanceof Recognizer && ((Recognizer)ol).hasPattern();
+	}
+	
+	private PatternAutomaton automaton(){
+		if (!automatonValid){
+			ArrayList<Recognizer> recognizers = new ArrayList<Recognizer>();
+			for (OutputListener ol:listeners)
+				if (isPatternRecognizer(ol) && !recognizers.contains(ol)) 
+					recognizers.add((Recognizer)ol);
+			automaton = (recognizers.isEmpty() ? null : new PatternAutomaton(recognizers.toArray(new Recognizer[recognizers.size()])));
+			automatonValid = true;
+		}
+		return automaton;
 	}
 	
 	public boolean hasListener(OutputListener ol){
@@ -79,8 +102,17 @@ public class OutputHandler extends Thread {
 		debugStream.println("PROLOG "+originStd+" ENDED");
 	}
 	synchronized void fireABs(byte[] buffer,int nbytes){
-		for (int L=0; L<listeners.size(); L++)
-			((listeners.elementAt(L))).analyseBytes(buffer,nbytes,originStd,charset);
+		PatternAutomaton A = automaton();
+		boolean scanned = false;
+		for (int L=0; L<listeners.size(); L++){
+			OutputListener ol = listeners.elementAt(L);
+			if (!isPatternRecognizer(ol)) 
+				ol.analyseBytes(buffer,nbytes,originStd,charset);
+			else if (!scanned){ // all patterns at once, when the first Recognizer would be told
+				A.scan(buffer,nbytes,originStd,charset);
+				scanned = true;
+			}
+		}
 		if(debugStream!=null) 
 		//debugStream.println("PROLOG "+name+":"+new String(buffer,0,nbytes));
 			printDebug(new String(buffer,0,nbytes, charset));
@@ -0,0 +1,111 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.util;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/** An Aho-Corasick automaton over the byte patterns of several Recognizers, which finds all their (possibly overlapping) occurrences
+in a single pass over the bytes, whatever the number of patterns. The state persists between calls to scan(), so occurrences
+split between buffers are found too. Not thread safe. */
+public class PatternAutomaton{
+	final Recognizer[] recognizers;
+	/** Transition table: the state after state s and byte b is delta[s*256+b] */
+	final int[] delta;
+	/** Indexes of the recognizers whose patterns end at each state, or null */
+	final int[][] matches;
+	int state = 0;
+	/** Recognizers which got the rest of the current buffer */
+	private final boolean[] done;
+
+	/** @param recognizers with non empty patterns */
+	public PatternAutomaton(Recognizer[] recognizers){
+		this.recognizers = recognizers;
+		done = new boolean[recognizers.length];
+		// trie of the patterns:
+		ArrayList<int[]> gotos = new ArrayList<int[]>();
+		ArrayList<int[]> outputs = new ArrayList<int[]>();
+		gotos.add(newRow()); outputs.add(null);
+		for (int r=0; r<recognizers.length; r++){
+			int s = 0;
+			for (byte B:recognizers[r].bytePattern){
+				int b = B & 0xFF;
+				if (gotos.get(s)[b]==-1){
+					gotos.get(s)[b] = gotos.size();
+					gotos.add(newRow()); outputs.add(null);
+				}
+				s = gotos.get(s)[b];
+			}
+			outputs.set(s,append(outputs.get(s),r));
+		}
+		// breadth first, complete the transitions with the failure links:
+		int n = gotos.size();
+		delta = new int[n*256];
+		matches = new int[n][];
+		int[] fail = new int[n];
+		int[] queue = new int[n];
+		int head = 0, tail = 0;
+		for (int b=0; b<256; b++){
+			int t = gotos.get(0)[b];
+			if (t==-1) delta[b] = 0;
+			else {
+				delta[b] = t;
+				fail[t] = 0;
+				queue[tail++] = t;
+			}
+		}
+		matches[0] = outputs.get(0);
+		while (head<tail){
+			int s = queue[head++];
+			int[] out = outputs.get(s);
+			int[] inherited = matches[fail[s]];
+			if (inherited!=null)
+				for (int r:inherited) out = append(out,r);
+			matches[s] = out;
+			for (int b=0; b<256; b++){
+				int t = gotos.get(s)[b];
+				if (t==-1) delta[s*256+b] = delta[fail[s]*256+b];
+				else {
+					delta[s*256+b] = t;
+					fail[t] = delta[fail[s]*256+b];
+					queue[tail++] = t;
+				}
+			}
+		}
+	}
+
+	private static int[] newRow(){
+		int[] row = new int[256];
+		Arrays.fill(row,-1);
+		return row;
+	}
+
+	private static int[] append(int[] A,int x){
+		if (A==null) return new int[]{x};
+		int[] R = Arrays.copyOf(A,A.length+1);
+		R[A.length] = x;
+		return R;
+	}
+
+	/** Tells each recognizer about the occurrences of its pattern in the buffer; after a recognizer collects the rest of the buffer,
+	it is not told about further occurrences in it */
+	public void scan(byte[] buffer,int nbytes,String originStd,Charset charset){
+		boolean someDone = false;
+		int s = state;
+		for (int b=0; b<nbytes; b++){
+			s = delta[(s<<8)|(buffer[b] & 0xFF)];
+			int[] M = matches[s];
+			if (M!=null)
+				for (int r:M)
+					if (!done[r] && recognizers[r].matched(buffer,b+1,nbytes,originStd,charset))
+						done[r] = someDone = true;
+		}
+		state = s;
+		if (someDone) Arrays.fill(done,false);
+	}
+}
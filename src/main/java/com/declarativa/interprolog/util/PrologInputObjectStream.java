@@ -0,0 +1,28 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.util;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+
+import com.declarativa.interprolog.AbstractPrologEngine;
+
+/** An ObjectInputStream for objects sent by Prolog, which knows their engine; objects parsing text as they are read,
+such as InitiallyFlatTermModel, follow its options */
+public class PrologInputObjectStream extends ObjectInputStream {
+	final AbstractPrologEngine engine;
+	
+	public PrologInputObjectStream(InputStream in, AbstractPrologEngine engine) throws IOException{
+		super(in);
+		this.engine = engine;
+	}
+	
+	public AbstractPrologEngine getEngine(){
+		return engine;
+	}
+}
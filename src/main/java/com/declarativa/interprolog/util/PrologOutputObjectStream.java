@@ -8,19 +8,37 @@ Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
 package com.declarativa.interprolog.util;
 import java.io.*;
 /** Vaguely similar to an ObjectOutputStream, but sends the total number of serialized bytes up front,
- so Prolog can keep grammar and socket reads separate without hanging for input. */
+ so Prolog can keep grammar and socket reads separate without hanging for input. 
+ A session stream can be flushed many times, each flush sending one message; all messages belong to the same 
+ serialization stream, so only the first carries the stream header and later ones may refer to objects 
+ (class descriptors included) sent before, until the next reset(); as reset() forgets them all, 
+ resetting before each message leaves just the stream header saved. 
+ If given a ChannelOutputStream, objects are serialized directly into its buffer, which sends the byte count and the bytes in one write. */
 public class PrologOutputObjectStream {
 	OutputStream os;
 	ObjectOutputStream tempObjects;
 	ByteArrayOutputStream serializedTemp;
+	/** Non null if serializing directly into it, instead of serializedTemp */
+	ChannelOutputStream channelOutput;
 	boolean flushed = false;
+	final boolean session;
 	
 	public PrologOutputObjectStream(OutputStream os) throws IOException{
 		this(os,false);
 	}
 	
 	public PrologOutputObjectStream(OutputStream os, boolean usesEscapeByte) throws IOException{
+		this(os,usesEscapeByte,false);
+	}
+	
+	public PrologOutputObjectStream(OutputStream os, boolean usesEscapeByte, boolean session) throws IOException{
 		this.os=os;
+		this.session=session;
+		if (!usesEscapeByte && os instanceof ChannelOutputStream) {
+			channelOutput = (ChannelOutputStream)os;
+			tempObjects = new ObjectOutputStream(channelOutput);
+			return;
+		}
 		if (usesEscapeByte) serializedTemp = new MyByteArrayOutputStream(512);
 		else serializedTemp = new ByteArrayOutputStream(512); // this might be tuned to a better initial capacity
 		tempObjects = new ObjectOutputStream(serializedTemp);
@@ -28,21 +46,44 @@ public class PrologOutputObjectStream {
 	
 	boolean usingEscapeByte(){return serializedTemp instanceof MyByteArrayOutputStream;}
 	
+	public boolean isDirect(){
+		return channelOutput!=null;
+	}
+	
 	public ObjectOutputStream getObjectStream(){
 		return tempObjects;
 	}
 	
+	public boolean isSession(){
+		return session;
+	}
+	
 	public void flush() throws IOException{
-		tempObjects.close();
+		if (session) tempObjects.flush();
+		else tempObjects.close();
+		if (channelOutput!=null) {
+			channelOutput.sendMessage();
+			if (!session) flushed=true;
+			return;
+		}
        	int count = -1;
        	if (usingEscapeByte()) count = size() - ((MyByteArrayOutputStream)serializedTemp).escapeCount;
        	else count = size();
        	(new DataOutputStream(os)).writeInt(count); // byte count up front...
        	serializedTemp.writeTo(os);
        	//dump(serializedTemp);
-       	serializedTemp.close();
+       	if (session) {
+       		serializedTemp.reset();
+       		if (usingEscapeByte()) ((MyByteArrayOutputStream)serializedTemp).escapeCount=0;
+       	} else serializedTemp.close();
        	os.flush(); 
-       	flushed=true;
+       	if (os instanceof ChannelOutputStream) ((ChannelOutputStream)os).sendBytes();
+       	if (!session) flushed=true;
+	}
+	/** Makes the receiver forget all objects sent so far, so they will not be referred by the next message. 
+	Only meaningful for session streams */
+	public void reset() throws IOException{
+		tempObjects.reset();
 	}
 //	public static final int MAX_MESSAGE_LEN = 65535; // Contributed by Chris Rued Nov 28, 2011
 	public void writeObject(Object obj) throws IOException{
@@ -53,6 +94,7 @@ public class PrologOutputObjectStream {
 		tempObjects.writeObject(obj);
 	}
 	public int size(){
+		if (channelOutput!=null) return channelOutput.size();
 		return serializedTemp.size();
 	}
 	/** for testing */
@@ -12,7 +12,8 @@ import java.util.Vector;
 /** A simple pattern recognizor used in error detection. ASCII characters only. */
 public class Recognizer implements OutputListener{
 	Vector<RecognizerListener> listeners;
-	int nextInPattern; // next byte to recognize
+	/** Scans for this pattern alone, when used directly as an OutputListener; OutputHandler instead scans for all its Recognizers at once */
+	private PatternAutomaton automaton = null;
 	byte[] bytePattern;
 	boolean collectRestOfBuffer;
 	byte[] lastBuffer; int lastNbytes;
@@ -27,36 +28,38 @@ public class Recognizer implements OutputListener{
 		listeners = new Vector<RecognizerListener>();
 		if (pattern==null) bytePattern=new byte[0];
 		else bytePattern = pattern.getBytes();
-		nextInPattern=0;
 		this.collectRestOfBuffer=collectRestOfBuffer;
 	}
 	
 	public int numberListeners(){ return listeners.size(); }
 
+	public boolean hasPattern(){
+		return bytePattern.length>0;
+	}
+
 	// OutputListener methods:
 	public synchronized void analyseBytes(byte[] buffer,int nbytes,String originStd, Charset charset){
 		lastBuffer = buffer; lastNbytes=nbytes;
 		if (bytePattern.length==0) 
 			fireRecognized(new String(buffer,0,nbytes,charset),originStd);
 		else {
-			if (nextInPattern>bytePattern.length-1)
-				throw new IPException("Inconsistency in Recognizer ("+nextInPattern+","+bytePattern.length+")");
-			for(int b=0;b<nbytes;b++) {
-				if(buffer[b]==bytePattern[nextInPattern]){
-					nextInPattern++;
-					if (nextInPattern>=bytePattern.length) {
-						nextInPattern = 0;
-						if (collectRestOfBuffer && b+1<nbytes) {
-							fireRecognized(new String(buffer,b+1,nbytes-(b+1),charset),originStd);
-							break;
-						}
-						else fireRecognized("", originStd);
-					}
-				}
-				else nextInPattern = 0;
-			}
+			if (automaton==null) automaton = new PatternAutomaton(new Recognizer[]{this});
+			automaton.scan(buffer,nbytes,originStd,charset);
 		}
 	}
+	
+	/** The pattern occurs in buffer just before position end. 
+	@return true if the rest of the buffer was collected, so further occurrences in it should be ignored */
+	synchronized boolean matched(byte[] buffer,int end,int nbytes,String originStd, Charset charset){
+		lastBuffer = buffer; lastNbytes=nbytes;
+		if (collectRestOfBuffer && end<nbytes) {
+			fireRecognized(new String(buffer,end,nbytes-end,charset),originStd);
+			return true;
+		}
+		fireRecognized("", originStd);
+		return false;
+	}
+	
 	/** Assume there are no network problems, hence unexpected stream end means Prolog process has died unexpectedly */
 	public void streamEnded(String originStd){
 		//throw new IPException("Unexpected end of stream, Prolog may have died abruptly");
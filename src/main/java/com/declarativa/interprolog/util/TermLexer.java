@@ -0,0 +1,351 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.util;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+
+/** Splits the text of Prolog terms, as written by Prolog with quoted(true) and ignore_ops(true), into tokens.
+Numbers are exact: integers become Integer, Long or BigInteger, according to their size.
+Punctuation ( ) [ ] { } , | is returned as its char; the other tokens as one of the TT_ constants, with their text in sval and
+numbers in nval. Text comes from a char array, or from a Reader through a buffer.
+Not thread safe. */
+public class TermLexer{
+	public static final int TT_EOF = -1;
+	/** Unquoted atom: alphanumeric, symbol chars, or solo (! ;) */
+	public static final int TT_ATOM = -2;
+	/** Quoted atom, sval has its quotes removed and escapes (if interpreted) replaced */
+	public static final int TT_QUOTED = -3;
+	public static final int TT_VARIABLE = -4;
+	public static final int TT_INTEGER = -5;
+	public static final int TT_FLOAT = -6;
+	/** "double quoted" or `back quoted` text */
+	public static final int TT_STRING = -7;
+
+	static final String SYMBOL_CHARS = "#&*+-./:<=>?@^~\\";
+
+	char[] buf;
+	int pos, limit;
+	/** start of the current token in buf */
+	int tokenStart;
+	final Reader reader;
+	boolean eof = false;
+	final boolean escapes;
+	private StringBuilder sb = null;
+
+	/** Last token's type */
+	public int ttype = TT_EOF;
+	/** Text of the last atom, variable or string token */
+	public String sval;
+	/** Value of the last number token */
+	public Number nval;
+	private boolean pushedBack = false;
+	/** If not null, canonicalizes atoms */
+	private AtomTable atoms = null;
+
+	/** Tokens in chars from start to end
+	@param escapes whether backslash escapes in quoted text are interpreted, ISO style; otherwise backslashes are kept as they are */
+	public TermLexer(char[] chars,int start,int end,boolean escapes){
+		buf = chars; pos = start; limit = end;
+		reader = null; eof = true;
+		this.escapes = escapes;
+	}
+
+	public TermLexer(CharSequence text,boolean escapes){
+		this(text.toString().toCharArray(),0,text.length(),escapes);
+	}
+
+	public TermLexer(Reader reader,boolean escapes){
+		buf = new char[8*1024];
+		this.reader = reader;
+		this.escapes = escapes;
+	}
+
+	/** Atoms (quoted or not) and strings will be canonical instances from T */
+	public void setAtomTable(AtomTable T){
+		atoms = T;
+	}
+
+	private String atom(int start,int length){
+		if (atoms==null) return new String(buf,start,length);
+		else return atoms.canonical(buf,start,length);
+	}
+
+	/** Makes the next nextToken() return the current token again */
+	public void pushBack(){
+		pushedBack = true;
+	}
+
+	/** Reads more chars, keeping those of the current token
+	@return false on end of input */
+	private boolean fill() throws IOException{
+		if (eof) return false;
+		if (tokenStart>0){
+			System.arraycopy(buf,tokenStart,buf,0,limit-tokenStart);
+			pos -= tokenStart; limit -= tokenStart; tokenStart = 0;
+		}
+		if (limit==buf.length){
+			char[] bigger = new char[buf.length*2];
+			System.arraycopy(buf,0,bigger,0,limit);
+			buf = bigger;
+		}
+		int n = reader.read(buf,limit,buf.length-limit);
+		if (n<=0) {
+			eof = true;
+			return false;
+		}
+		limit += n;
+		return true;
+	}
+
+	/** The char ahead positions after the current one, or -1 at the end of input */
+	private int peek(int ahead) throws IOException{
+		while (pos+ahead>=limit)
+			if (!fill()) return -1;
+		return buf[pos+ahead];
+	}
+
+	static boolean isAlphanumeric(int c){
+		return c=='_' || c=='$' || Character.isLetterOrDigit(c);
+	}
+
+	static boolean isSymbolChar(int c){
+		return c>=0 && SYMBOL_CHARS.indexOf(c)!=-1;
+	}
+
+	static boolean isDigit(int c){
+		return c>='0' && c<='9';
+	}
+
+	public int nextToken() throws IOException{
+		if (pushedBack) {
+			pushedBack = false;
+			return ttype;
+		}
+		sval = null; nval = null;
+		int c;
+		while ((c=peek(0))!=-1 && Character.isWhitespace(c)) pos++;
+		tokenStart = pos;
+		if (c==-1) return ttype = TT_EOF;
+		if (isDigit(c) || (c=='-' && isDigit(peek(1))))
+			return number();
+		if (c=='_' || Character.isUpperCase(c)){
+			pos++;
+			while (isAlphanumeric(peek(0))) pos++;
+			sval = new String(buf,tokenStart,pos-tokenStart);
+			return ttype = TT_VARIABLE;
+		}
+		if (Character.isLetter(c) || c=='$'){
+			pos++;
+			while (isAlphanumeric(peek(0))) pos++;
+			sval = atom(tokenStart,pos-tokenStart);
+			return ttype = TT_ATOM;
+		}
+		if (isSymbolChar(c)){
+			pos++;
+			while (isSymbolChar(peek(0))) pos++;
+			sval = atom(tokenStart,pos-tokenStart);
+			return ttype = TT_ATOM;
+		}
+		if (c=='!' || c==';'){
+			pos++;
+			sval = (c=='!'?"!":";");
+			return ttype = TT_ATOM;
+		}
+		if (c=='\'') {
+			sval = quoted('\'');
+			return ttype = TT_QUOTED;
+		}
+		if (c=='"' || c=='`') {
+			sval = quoted((char)c);
+			return ttype = TT_STRING;
+		}
+		if ("()[]{},|".indexOf(c)!=-1){
+			pos++;
+			return ttype = c;
+		}
+		throw new IPException("Unexpected char '"+(char)c+"' in term text");
+	}
+
+	/** Text between quote chars, starting at pos. Positions are kept relative to tokenStart, as buf may shift while peeking */
+	private String quoted(char quote) throws IOException{
+		pos++;
+		int text = pos-tokenStart;
+		sb = null;
+		while(true){
+			int c = peek(0);
+			if (c==-1) throw new IPException("Missing closing "+quote+" in term text");
+			if (c==quote){
+				if (peek(1)==quote){ // doubled quote
+					appendPending(text);
+					sb.append(quote);
+					pos += 2; text = pos-tokenStart;
+					continue;
+				}
+				String R;
+				if (sb==null) R = atom(tokenStart+text,pos-tokenStart-text);
+				else {
+					appendPending(text);
+					R = sb.toString();
+					if (atoms!=null) R = atoms.canonical(R);
+				}
+				pos++;
+				return R;
+			}
+			if (c=='\\' && escapes){
+				appendPending(text);
+				pos++;
+				escape();
+				text = pos-tokenStart;
+				continue;
+			}
+			pos++;
+		}
+	}
+
+	private void appendPending(int text){
+		if (sb==null) sb = new StringBuilder();
+		sb.append(buf,tokenStart+text,pos-tokenStart-text);
+	}
+
+	/** Appends the char escaped after a backslash, at pos */
+	private void escape() throws IOException{
+		int c = peek(0);
+		pos++;
+		switch(c){
+		case 'a': sb.append('\u0007'); break;
+		case 'b': sb.append('\b'); break;
+		case 'f': sb.append('\f'); break;
+		case 'n': sb.append('\n'); break;
+		case 'r': sb.append('\r'); break;
+		case 't': sb.append('\t'); break;
+		case 'v': sb.append('\u000B'); break;
+		case 'e': sb.append('\u001B'); break;
+		case 's': sb.append(' '); break;
+		case '0': case '1': case '2': case '3': case '4': case '5': case '6': case '7':
+			pos--;
+			sb.appendCodePoint(escapedCode(8));
+			break;
+		case 'x':
+			sb.appendCodePoint(escapedCode(16));
+			break;
+		case '\n': break; // continuation line
+		case -1: throw new IPException("Missing closing quote in term text");
+		default:
+			if (c=='\\' || c=='\'' || c=='"' || c=='`') sb.append((char)c);
+			else sb.append('\\').append((char)c);
+		}
+	}
+
+	/** Digits in radix, terminated by a backslash */
+	private int escapedCode(int radix) throws IOException{
+		int code = 0;
+		int d;
+		while ((d = Character.digit(peek(0),radix))!=-1){
+			code = code*radix+d;
+			pos++;
+		}
+		if (peek(0)=='\\') pos++;
+		return code;
+	}
+
+	private int number() throws IOException{
+		boolean negative = (peek(0)=='-');
+		if (negative) pos++;
+		if (peek(0)=='0' && peek(1)=='\''){ // character code
+			pos += 2;
+			int c = peek(0);
+			if (c==-1) throw new IPException("Missing character code in term text");
+			pos++;
+			int code;
+			if (c=='\\' && escapes){
+				sb = new StringBuilder();
+				escape();
+				code = sb.codePointAt(0);
+			} else {
+				if (c=='\'' && peek(0)=='\'') pos++;
+				code = c;
+			}
+			nval = new Integer(negative?-code:code);
+			return ttype = TT_INTEGER;
+		}
+		if (peek(0)=='0' && (peek(1)=='x' || peek(1)=='o' || peek(1)=='b')){
+			int radix = (peek(1)=='x'?16:(peek(1)=='o'?8:2));
+			if (Character.digit(peek(2),radix)!=-1){
+				pos += 2;
+				int digits = pos-tokenStart;
+				while (Character.digit(peek(0),radix)!=-1) pos++;
+				nval = integer(new String(buf,tokenStart+digits,pos-tokenStart-digits),radix,negative);
+				return ttype = TT_INTEGER;
+			}
+		}
+		int digitsStart = pos-tokenStart;
+		while (isDigit(peek(0))) pos++;
+		boolean isFloat = false;
+		if (peek(0)=='.' && isDigit(peek(1))){
+			isFloat = true;
+			pos++;
+			while (isDigit(peek(0))) pos++;
+		}
+		int e = peek(0);
+		if ((e=='e' || e=='E') && (isDigit(peek(1)) || ((peek(1)=='+' || peek(1)=='-') && isDigit(peek(2))))){
+			isFloat = true;
+			pos += 2;
+			while (isDigit(peek(0))) pos++;
+		}
+		String digits = new String(buf,tokenStart+digitsStart,pos-tokenStart-digitsStart);
+		if (isFloat){
+			double D;
+			if (peek(0)=='I' && peek(1)=='n' && peek(2)=='f'){ // SWI's 1.0Inf
+				pos += 3;
+				D = Double.POSITIVE_INFINITY;
+			} else if (peek(0)=='N' && peek(1)=='a' && peek(2)=='N'){
+				pos += 3;
+				D = Double.NaN;
+			} else D = Double.parseDouble(digits);
+			nval = new Double(negative?-D:D);
+			return ttype = TT_FLOAT;
+		}
+		nval = integer(digits,10,negative);
+		return ttype = TT_INTEGER;
+	}
+
+	/** The smallest of Integer, Long or BigInteger able to hold the number */
+	static Number integer(String digits,int radix,boolean negative){
+		if (digits.length()<=(radix==10?9:(radix==16?7:(radix==8?10:30)))){
+			int I = Integer.parseInt(digits,radix);
+			return new Integer(negative?-I:I);
+		}
+		BigInteger B = new BigInteger(digits,radix);
+		if (negative) B = B.negate();
+		if (B.bitLength()<32) return new Integer(B.intValue());
+		if (B.bitLength()<64) return new Long(B.longValue());
+		return B;
+	}
+
+	/** Index of the quote closing the quoted text started at chars[start], following the same rules as nextToken(), or -1 if missing */
+	public static int closingQuote(char[] chars,int start,int end,boolean escapes){
+		char quote = chars[start];
+		for (int i=start+1; i<end; i++){
+			char c = chars[i];
+			if (c==quote){
+				if (i+1<end && chars[i+1]==quote) i++;
+				else return i;
+			} else if (c=='\\' && escapes && i+1<end){
+				i++;
+				int radix = (chars[i]=='x'?16:(chars[i]>='0' && chars[i]<='7'?8:0));
+				if (radix!=0) {
+					if (radix==16) i++;
+					while (i<end && Character.digit(chars[i],radix)!=-1) i++;
+					if (i>=end || chars[i]!='\\') i--; // no closing backslash
+				}
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,59 @@
+/*
+Author: Miguel Calejo
+Contact: info@interprolog.com, www.interprolog.com
+Copyright InterProlog Consulting / Renting Point Lda, Portugal 2014
+Use and distribution, without any warranties, under the terms of the
+Apache License, as per http://www.apache.org/licenses/LICENSE-2.0.html
+*/
+package com.declarativa.interprolog.util;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+
+/** Unix domain (AF_UNIX) server sockets, available from Java 16 on; accessed by reflection, as InterProlog still runs on Java 8 */
+public class UnixSockets {
+	/** Socket paths longer than this are not portable (sun_path is 108 bytes on Linux, 104 on macOS) */
+	public static final int MAX_PATH_LENGTH = 100;
+	private static Boolean available = null;
+
+	/** Whether this Java and OS support Unix domain sockets */
+	public static synchronized boolean isAvailable(){
+		if (available==null){
+			boolean A = false;
+			if (!System.getProperty("os.name").toLowerCase().startsWith("windows")) {
+				try{
+					Class.forName("java.net.UnixDomainSocketAddress");
+					StandardProtocolFamily.valueOf("UNIX");
+					A = true;
+				} catch (Exception e){}
+			}
+			available = new Boolean(A);
+		}
+		return available.booleanValue();
+	}
+
+	/** Whether a socket can be bound to this file path */
+	public static boolean isUsablePath(File path){
+		return isAvailable() && path.getAbsolutePath().getBytes().length<=MAX_PATH_LENGTH;
+	}
+
+	/** Binds a new (blocking) server socket channel to path, which must not exist */
+	public static ServerSocketChannel openServer(File path) throws IOException{
+		if (!isAvailable()) throw new IPException("Unix domain sockets are not available");
+		try{
+			SocketAddress address = (SocketAddress)Class.forName("java.net.UnixDomainSocketAddress").getMethod("of",String.class).invoke(null,path.getAbsolutePath());
+			ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+			ServerSocketChannel server = (ServerSocketChannel)ServerSocketChannel.class.getMethod("open",ProtocolFamily.class).invoke(null,unix);
+			server.bind(address);
+			return server;
+		} catch (java.lang.reflect.InvocationTargetException e){
+			if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw new IPException("Could not open Unix domain socket:"+e.getCause());
+		} catch (ReflectiveOperationException e){
+			throw new IPException("Could not open Unix domain socket:"+e);
+		}
+	}
+}
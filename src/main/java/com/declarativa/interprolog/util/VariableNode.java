@@ -26,10 +26,17 @@ public class VariableNode implements Serializable{
 		number = new Integer(n);
 	}
 	
+	public int getNumber(){
+		return number.intValue();
+	}
+	
 	public String toString(){
 		return "Var"+number;
 	}
 	public boolean equals(Object x){
-		return (x.getClass()==getClass()  && number.equals( ((VariableNode)x).number ));
+		return (x!=null && x.getClass()==getClass()  && number.equals( ((VariableNode)x).number ));
+	}
+	public int hashCode(){
+		return number.hashCode();
 	}
 }
@@ -36,7 +36,7 @@ public abstract class AbstractNativeEngine extends AbstractPrologEngine{
     	Object x;
     	try{
 	        ByteArrayInputStream bai = new ByteArrayInputStream(in);
-			ObjectInputStream ios = new ObjectInputStream(bai);
+			ObjectInputStream ios = new PrologInputObjectStream(bai,this);
 			x = ios.readObject();
 			ios.close();
 		} catch (ClassNotFoundException e){
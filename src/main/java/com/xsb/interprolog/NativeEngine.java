@@ -126,7 +126,11 @@ public class NativeEngine extends AbstractNativeEngine {
 			prologHandler = mayBecomeAthread;
 			mayBecomeAthread.start();
 		} else mayBecomeAthread.run();
-		while(!topGoalHasStarted) Thread.yield();
+		while(true){
+			long V = stateVersion();
+			if (topGoalHasStarted) break;
+			awaitStateChange(V);
+		}
 		interPrologFileLoaded = true;
     }
     
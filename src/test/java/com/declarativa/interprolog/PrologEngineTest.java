@@ -10,6 +10,7 @@ import junit.framework.*;
 
 import java.util.*;
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
 
 import com.declarativa.interprolog.util.*;
 
@@ -353,7 +354,67 @@ public abstract class PrologEngineTest extends TestCase{
 		assertEquals(2,solutions.length);
 		assertEquals("a",solutions[0].toString());
 	}
+	public void testObjectRegistry(){
+		ObjectRegistry registry = new ObjectRegistry();
+		ArrayList<Object> objects = new ArrayList<Object>();
+		for (int i=0;i<1000;i++){
+			Object x = new Integer(7); // equal but not identical
+			objects.add(x);
+			assertEquals(i,registry.registerJavaObject(x));
+		}
+		assertEquals(500,registry.registerJavaObject(objects.get(500)));
+		assertTrue(registry.unregisterJavaObject(500));
+		assertNull(registry.getRealJavaObject(500));
+		assertEquals(500,registry.registerJavaObject("reused"));
+		assertTrue(registry.unregisterJavaObject(objects.get(3)));
+		assertEquals(999,registry.registerJavaObject(objects.get(999)));
+		assertEquals(3,registry.registerJavaObject("reused 2"));
+		assertTrue(registry.getRealJavaObject(999)==objects.get(999));
+		try{
+			registry.getRealJavaObject(1000);
+			fail("should reject an ID never used");
+		} catch (RuntimeException e){}
+
+		registry.setReferenceKind(ObjectRegistry.WEAK_REFERENCES);
+		assertTrue(registry.getRealJavaObject(999)==objects.get(999));
+		int garbageID = registry.registerJavaObject(new Object());
+		// System.gc() is only a hint, so what follows a collection is checked only if one happens
+		int[] released = new int[0];
+		for (int i=0; i<10 && released.length==0; i++){
+			System.gc();
+			released = registry.takeReleasedIDs();
+		}
+		if (released.length>0){
+			assertEquals(1,released.length);
+			assertEquals(garbageID,released[0]);
+			assertNull(registry.getRealJavaObject(garbageID));
+			assertEquals(garbageID,registry.registerJavaObject(new Object()));
+		}
+		assertTrue(registry.getRealJavaObject(999)==objects.get(999));
+	}
 	public int luckyNumber(){return 13;}
+	public long doubled(long x){
+		if (x<0) throw new IllegalStateException("negative");
+		return 2*x;
+	}
+	public void testDispatchArguments() throws Exception{
+		DispatchCache.Invoker invoker = new DispatchCache().method(getClass(),"doubled",new Class<?>[]{long.class});
+		assertEquals(new Long(6),invoker.invoke(this,new Object[]{new Integer(3)}));
+		try{
+			invoker.invoke(this,new Object[]{"3"});
+			fail("should reject a String argument");
+		} catch (IllegalArgumentException e){}
+		try{
+			invoker.invoke(this,new Object[]{null});
+			fail("should reject a null primitive argument");
+		} catch (IllegalArgumentException e){}
+		try{
+			invoker.invoke(this,new Object[]{new Long(-1)});
+			fail("should raise the method's exception");
+		} catch (InvocationTargetException e){
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
 	public void testJavaMessage(){
 		assertEquals(engine.registerJavaObject(this),thisID);
 		String callback = "javaMessage("+thisID+",R,luckyNumber), ipObjectSpec('java.lang.Integer',R,[13],_)";
@@ -363,7 +424,9 @@ public abstract class PrologEngineTest extends TestCase{
 		assertTrue("Succeeded 2nd",engine.deterministicGoal(clauseAsserts));
 		// long tortureStart= System.currentTimeMillis();
 		int ngoals=10;
+		engine.clearDispatchCache();
 		assertTrue("Succeeded torture",engine.deterministicGoal("tortureJM("+ngoals+")"));		
+		assertEquals("method found once",1,engine.dispatchCache.size());
 		// System.out.println("Callback torture took "+(System.currentTimeMillis()-tortureStart)/ngoals+" mS/message");
 		// Win98, Celeron 400 MHz: 220 ms/message
 		// Win NT4 Workstation, Pentium 400 MHz: 441 mS/message
@@ -497,6 +560,22 @@ public abstract class PrologEngineTest extends TestCase{
     public void kickThread1(){
     	secondThreadArrived=true;
     }
+    public String callbackThreadName(){
+    	return Thread.currentThread().getName();
+    }
+    public void testCallbackExecutor(){
+    	java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(2);
+    	boolean old = engine.isThreadedCallbacks();
+    	engine.setThreadedCallbacks(true);
+    	engine.setCallbackExecutor(pool);
+    	try{
+    		String name = (String)engine.deterministicGoal("javaMessage("+engine.registerJavaObject(this)+",N,callbackThreadName)","[string(N)]")[0];
+    		assertEquals("threaded callback: callbackThreadName",name);
+    	} finally{
+    		engine.setThreadedCallbacks(old);
+    		pool.shutdown();
+    	}
+    }
     
     class JavaThreadN extends Thread{
     	public void run(){
@@ -722,6 +801,128 @@ public abstract class PrologEngineTest extends TestCase{
     	T.deflate(); // needed for smaller serialization and better performance... ;-)
     	assertTrue(engine.deterministicGoal("recoverTermModel(TM,"+TS+")","[TM]",new Object[]{T}));
     }
+    public void testDeepTermEquality(){
+		TermModel[] elements = new TermModel[200000];
+		for (int i=0; i<elements.length; i++)
+			elements[i] = new TermModel("f",new TermModel[]{new TermModel(new Integer(i)),new TermModel(new VariableNode(i%3))});
+		TermModel L1 = TermModel.makeList(elements), L2 = TermModel.makeList(elements.clone());
+		assertEquals(L1,L2);
+		assertEquals(L1.hashCode(),L2.hashCode());
+		elements[elements.length-1] = new TermModel("f",new TermModel[]{new TermModel(new Integer(0)),new TermModel(new VariableNode(4))});
+		assertFalse(L1.equals(TermModel.makeList(elements)));
+		// changing a subterm changes the hash of its ancestors
+		TermModel T = new TermModel("g",new TermModel[]{new TermModel("h",new TermModel[]{new TermModel("a")})});
+		int before = T.hashCode();
+		((TermModel)((TermModel)T.getChild(0)).getChild(0)).setNodeValue("b");
+		assertEquals(new TermModel("g",new TermModel[]{new TermModel("h",new TermModel[]{new TermModel("b")})}).hashCode(),T.hashCode());
+		assertTrue(before!=T.hashCode());
+    }
+    int recognized;
+    public void testOutputRecognizers(){
+    	StringBuilder text = new StringBuilder();
+    	for (int i=0; i<1000; i++)
+    		text.append("ababa|:");
+    	OutputHandler H = new OutputHandler(new ByteArrayInputStream(text.toString().getBytes()));
+    	RecognizerListener counter = new RecognizerListener(){
+    		public void recognized(Recognizer source,Object extra,String originStd){
+    			recognized++;
+    		}
+    	};
+    	String[] patterns = {"aba","bab","|:a"};
+    	for (String P:patterns){
+    		Recognizer R = new Recognizer(P);
+    		R.addRecognizerListener(counter);
+    		H.addOutputListener(R);
+    	}
+    	recognized = 0;
+    	H.run(); // overlapping occurrences, and those split between buffers, count too
+    	assertEquals(2000+1000+999,recognized);
+    }
+    public void testDeepTermWriting() throws java.io.IOException{
+		TermModel T = new TermModel("z");
+		for (int i=0; i<100000; i++)
+			T = new TermModel("f",new TermModel[]{T});
+		java.io.StringWriter W = new java.io.StringWriter();
+		T.write(W,true);
+		assertEquals(100000*3+3,W.getBuffer().length()); // f(...) around 'z'
+		assertTrue(T.unifies(T));
+		assertEquals("a=(b+c)/d",((TermModel)engine.deterministicGoal("X=(a=(b+c)/d), buildTermModel(X,M)","[M]")[0]).toString());
+		// mixed precedences, parenthesizing both arguments of several infix operators:
+		TermModel x = new TermModel("x");
+		TermModel E = x;
+		for (int i=0; i<50; i++) // ((...(x+x)*(x-x)+x)*(x-x)...
+			E = new TermModel("*",new TermModel[]{new TermModel("+",new TermModel[]{E,x}),new TermModel("-",new TermModel[]{x,x})});
+		T = new TermModel("/",new TermModel[]{new TermModel("=",new TermModel[]{new TermModel("*",new TermModel[]{new TermModel("+",new TermModel[]{
+			new TermModel("/",new TermModel[]{new TermModel("+",new TermModel[]{x,x}),new TermModel("-",new TermModel[]{x,x})}),new TermModel("a")}),x}),x}),x});
+		assertEquals("(((x+x)/(x-x)+a)*x=x)/x",T.toString());
+		assertEquals("'/'('='('*'('+'('/'('+'('x','x'),'-'('x','x')),'a'),'x'),'x'),'x')",T.toString(true));
+		W = new java.io.StringWriter();
+		E.write(W,false);
+		assertEquals(E.toString(),W.toString());
+		StringBuilder prefix = new StringBuilder();
+		for (int i=0; i<50; i++) prefix.append('(');
+		assertTrue(W.toString().startsWith(prefix+"x+x)*(x-x)+x)*(x-x)"));
+		assertTrue(W.toString().endsWith("+x)*(x-x)"));
+    }
+    public void testLazyInflation(){
+    	String TS = "2+Var0+[1.0,2,3,4.1]+f(Var1,'it''s')+zz3+Var2";
+    	TermModel eager = (TermModel)engine.deterministicGoal("Term="+TS+", buildInitiallyFlatTermModel(Term,M)","[M]")[0];
+    	engine.setLazyInflation(true);
+    	try{
+    		TermModel lazy = (TermModel)engine.deterministicGoal("Term="+TS+", buildInitiallyFlatTermModel(Term,M)","[M]")[0];
+    		assertEquals("+",lazy.node);
+    		assertEquals(eager.toString(true),lazy.toString(true));
+    		assertTrue(engine.deterministicGoal("recoverTermModel(TM,T), Term=("+TS+"), Term=(T+_)","[TM]",new Object[]{lazy.getChild(0)}));
+    	} finally{
+    		engine.setLazyInflation(false);
+    	}
+    }
+    public void testLazyChildrenReplaced(){
+		TermModel T = InitiallyFlatTermModel.testFromString("f(g(1,2),h(3))",true,false);
+		TermModel G = (TermModel)T.getChild(0);
+		G.setChildren(new TermModel[]{new TermModel("x")});
+		assertEquals(1,G.getChildCount());
+		assertEquals("f(g(x),h(3))",T.toString());
+    }
+    public void testLazyInflationThreads() throws InterruptedException{
+		StringBuilder text = new StringBuilder("f(");
+		for (int i=0; i<200; i++) text.append(i==0?"":",").append("g(X"+i+",[a,'b''c',h(X"+i+",Y)],"+i+")");
+		final String expected = renumberedVariables(InitiallyFlatTermModel.testFromString(text.append(")").toString()).toString());
+		for (int round=0; round<20; round++){
+			final TermModel T = InitiallyFlatTermModel.testFromString(text.toString(),true,false);
+			final Thread[] threads = new Thread[4];
+			final String[] results = new String[threads.length];
+			for (int t=0; t<threads.length; t++){
+				final int k = t;
+				threads[t] = new Thread(){
+					public void run(){
+						// different subterms first, then all of them:
+						for (int c=k; c<200; c+=threads.length) ((TermModel)T.getChild(c)).toString();
+						results[k] = T.toString();
+					}
+				};
+				threads[t].start();
+			}
+			for (int t=0; t<threads.length; t++){
+				threads[t].join();
+				// lazy terms number variables in order of parsing:
+				assertEquals(expected,renumberedVariables(results[t]));
+			}
+		}
+    }
+    /** Term text with variables renamed in order of first occurrence */
+    static String renumberedVariables(String S){
+		java.util.regex.Matcher M = java.util.regex.Pattern.compile("Var\\d+").matcher(S);
+		HashMap<String,String> names = new HashMap<String,String>();
+		StringBuffer result = new StringBuffer();
+		while (M.find()){
+			String name = names.get(M.group());
+			if (name==null) names.put(M.group(),name = "V"+names.size());
+			M.appendReplacement(result,name);
+		}
+		M.appendTail(result);
+		return result.toString();
+    }
     public void testInitiallyFlatTermModelFlora(){
     	// Test doubled quotes in atoms, courtesy of Flora Java API
     	String TS2 = "['='('?XWamState',0),'='('?action','stestAction(''t1'')'),'='('?Ex','normal')]"; 
@@ -822,6 +1023,178 @@ public abstract class PrologEngineTest extends TestCase{
 		engine.setThreadedCallbacks(old);
 		engine.setAllowSimultaneousThreads(old_allow);
     }
+    public void testDeterministicGoalAsync() throws Exception{
+		java.util.concurrent.CompletableFuture<?>[] futures = new java.util.concurrent.CompletableFuture<?>[20];
+		for (int i=0;i<futures.length;i++)
+			futures[i] = engine.deterministicGoalAsync("X is "+i+"*2", "[string(X)]");
+		for (int i=0;i<futures.length;i++)
+			assertEquals(Integer.toString(i*2), ((Object[])futures[i].get())[0]);
+		assertNull(engine.deterministicGoalAsync("fail", "[]").get());
+		try{
+			engine.deterministicGoalAsync("throw(badness)", "[]").get();
+			fail("should raise an exception");
+		} catch (java.util.concurrent.ExecutionException e){
+			assertTrue(e.getCause() instanceof IPPrologError);
+		}
+		assertTrue(engine.deterministicGoal("true"));
+    }
+    public void testDeterministicGoalBatch(){
+		ArrayList<GoalFromJava> goals = new ArrayList<GoalFromJava>();
+		goals.add(engine.makeGoal("X is 6*7", null, null, "[string(X)]"));
+		goals.add(engine.makeGoal("fail", null, null, "[]"));
+		goals.add(engine.makeGoal("throw(badness)", null, null, "[]"));
+		goals.add(engine.makeGoal("atom_length(A,N), ipObjectSpec('java.lang.Integer',Integer,[N],_)", "[string(A)]", new Object[]{"hello"}, "[Integer]"));
+		ResultFromProlog[] results = engine.deterministicGoalBatch(goals);
+		assertEquals(4,results.length);
+		assertTrue(results[0].succeeded && results[0].error==null);
+		assertEquals("42",results[0].rVars[0]);
+		assertFalse(results[1].succeeded);
+		assertNull(results[1].error);
+		assertNotNull(results[2].error);
+		assertEquals(new Integer(5),results[3].rVars[0]);
+    }
+    public void testTermCodec(){
+		TermModel T = (TermModel)engine.deterministicGoal("X = f(a,[1,2.5|Y],'a\\x00E7\\b',Y,-7,123456789012,[],[a,f(a)]), buildTermModel(X,TM)","[TM]")[0];
+		assertEquals(T.toString(),TermCodec.decode(TermCodec.encode(T)).toString());
+		engine.setTermTransport(AbstractPrologEngine.TERMS_AS_CODEC);
+		try{
+			TermModel[] terms = engine.deterministicGoalTerms("X = f(a,[1,2.5|Y],'a\\x00E7\\b',Y,-7,123456789012,[],[a,f(a)]), Z = g(Y)","[X,Z]");
+			assertEquals(2,terms.length);
+			assertEquals(8,terms[0].getChildCount());
+			assertEquals("a\u00E7b",((TermModel)terms[0].getChild(2)).node);
+			assertEquals(new Long(123456789012L),((TermModel)terms[0].getChild(5)).node);
+			assertEquals(new Double(2.5),((TermModel)((TermModel)((TermModel)terms[0].getChild(1)).getChild(1)).getChild(0)).node);
+			assertTrue(((TermModel)terms[0].getChild(3)).isVar());
+			assertEquals(((TermModel)terms[0].getChild(3)).node,((TermModel)terms[1].getChild(0)).node);
+			assertTrue(((TermModel)terms[0].getChild(6)).isListEnd());
+			TermModel G = new TermModel("=",new TermModel[]{terms[1],new TermModel("g",new TermModel[]{new TermModel("\u00E7")})});
+			TermModel S = engine.deterministicGoal(G);
+			assertEquals("\u00E7",((TermModel)((TermModel)S.getChild(0)).getChild(0)).node);
+			assertNull(engine.deterministicGoalTerms("fail","[X]"));
+		} finally {
+			engine.setTermTransport(AbstractPrologEngine.TERMS_AS_OBJECTS);
+		}
+    }
+    public void testTermCodecIntegers(){
+		java.math.BigInteger two63 = java.math.BigInteger.ONE.shiftLeft(63), two64 = two63.shiftLeft(1);
+		Object[] values = {new Integer(Integer.MIN_VALUE), new Long(Long.MAX_VALUE), new Long(Long.MIN_VALUE), 
+			two63, two63.negate().subtract(java.math.BigInteger.ONE), two64, two64.negate()};
+		for (Object X:values)
+			assertEquals(X,TermCodec.decode(TermCodec.encode(new TermModel(X))).node);
+		// what ipEncodeTerm sends for 2^64 (zigzag 2^65):
+		byte[] bytes = {TermCodec.INT,-128,-128,-128,-128,-128,-128,-128,-128,-128,4};
+		assertEquals(two64,TermCodec.decode(bytes).node);
+		try{
+			TermCodec.decode(new byte[]{TermCodec.VAR,-128,-128,-128,-128,-128,-128,-128,-128,-128,2});
+			fail("should reject a variable number beyond 64 bits");
+		} catch (IPException e){}
+    }
+    /** The single token in text */
+    static TermLexer lexed(String text,boolean escapes) throws IOException{
+		TermLexer rest = new TermLexer(text,escapes);
+		rest.nextToken();
+		assertEquals("one token in "+text,TermLexer.TT_EOF,rest.nextToken());
+		TermLexer L = new TermLexer(text,escapes);
+		L.nextToken();
+		return L;
+    }
+    public void testTermLexerNumbers() throws IOException{
+		assertEquals(new Integer(Integer.MIN_VALUE),lexed("-2147483648",false).nval);
+		assertEquals(new Integer(Integer.MAX_VALUE),lexed("2147483647",false).nval);
+		assertEquals(new Long(2147483648L),lexed("2147483648",false).nval);
+		assertEquals(new Long(Long.MIN_VALUE),lexed("-9223372036854775808",false).nval);
+		assertEquals(new Long(Long.MAX_VALUE),lexed("9223372036854775807",false).nval);
+		assertEquals(java.math.BigInteger.ONE.shiftLeft(63),lexed("9223372036854775808",false).nval);
+		assertEquals(TermLexer.TT_INTEGER,lexed("9223372036854775808",false).ttype);
+		assertEquals(new Double(1.5e10),lexed("1.5e10",false).nval);
+		assertEquals(new Double(100.0),lexed("1.0E+2",false).nval);
+		assertEquals(new Double(-0.002),lexed("-2e-3",false).nval);
+		assertEquals(TermLexer.TT_FLOAT,lexed("2e-3",false).ttype);
+		TermLexer L = new TermLexer("3e",false);
+		assertEquals(TermLexer.TT_INTEGER,L.nextToken());
+		assertEquals(TermLexer.TT_ATOM,L.nextToken());
+		assertEquals("e",L.sval);
+		assertEquals(new Double(Double.POSITIVE_INFINITY),lexed("1.0Inf",false).nval);
+		assertEquals(new Double(Double.NEGATIVE_INFINITY),lexed("-1.0Inf",false).nval);
+		assertTrue(((Double)lexed("1.5NaN",false).nval).isNaN());
+		assertEquals(new Integer(31),lexed("0x1F",false).nval);
+		assertEquals(new Integer(-255),lexed("-0xff",false).nval);
+		assertEquals(new Integer(15),lexed("0o17",false).nval);
+		assertEquals(new Integer(5),lexed("0b101",false).nval);
+		assertEquals(new Long(0xFFFFFFFFFFL),lexed("0xFFFFFFFFFF",false).nval);
+		assertEquals(new Integer('a'),lexed("0'a",false).nval);
+		assertEquals(new Integer(' '),lexed("0' ",false).nval);
+		assertEquals(new Integer('\''),lexed("0'''",false).nval);
+		assertEquals(new Integer('\n'),lexed("0'\\n",true).nval);
+    }
+    public void testTermLexerQuotes() throws IOException{
+		TermLexer L = lexed("'it''s'",false);
+		assertEquals(TermLexer.TT_QUOTED,L.ttype);
+		assertEquals("it's",L.sval);
+		L = lexed("\"say \"\"hi\"\"\"",false);
+		assertEquals(TermLexer.TT_STRING,L.ttype);
+		assertEquals("say \"hi\"",L.sval);
+		assertEquals("a\nb\\",lexed("'a\\nb\\\\'",true).sval);
+		assertEquals("a\\nb\\\\",lexed("'a\\nb\\\\'",false).sval);
+		assertEquals("AA'",lexed("'\\x41\\\\101\\\\''",true).sval);
+		assertEquals(6,TermLexer.closingQuote("'it''s' ".toCharArray(),0,8,false));
+		// a doubled quote split between reads:
+		StringBuilder text = new StringBuilder("'");
+		for (int i=0; i<8*1024-2; i++) text.append('x');
+		text.append("''y'");
+		L = new TermLexer(new StringReader(text.toString()),false);
+		assertEquals(TermLexer.TT_QUOTED,L.nextToken());
+		assertTrue(L.sval.endsWith("x'y"));
+		assertEquals(TermLexer.TT_EOF,L.nextToken());
+		assertEquals("a\tb",((TermModel)InitiallyFlatTermModel.testFromString("f('a\\tb')",false,true).getChild(0)).node);
+		assertEquals("a\tb",((TermModel)InitiallyFlatTermModel.testFromString("f('a\\tb')",true,true).getChild(0)).node);
+		assertEquals("a\\tb",((TermModel)InitiallyFlatTermModel.testFromString("f('a\\tb')").getChild(0)).node);
+    }
+    public void testPrefetchingGoal(){
+		SolutionIterator si = engine.goal("member(X,[1,2,3,4,5])", null, null, "[string(X)]", 3);
+		int i = 0;
+		while(si.hasNext()){
+			i++;
+			assertEquals(new Integer(i).toString(), si.next()[0]);
+		}
+		assertEquals(5,i);
+		si = engine.goal("member(X,[1,2,3,4,5])", null, null, "[string(X)]", 2);
+		assertEquals("1",si.next()[0]);
+		si.cancel();
+		assertTrue(engine.deterministicGoal("true"));
+    }
+    public void testOutOfBandTermList() throws Exception{
+		OutOfBandTermResource oobr = new OutOfBandTermResource(engine);
+		oobr.put("[a,f(1,X),[1,2],'it''s']");
+		Iterator<TermModel> I = oobr.iterateTermList();
+		assertEquals("a",I.next().toString());
+		assertEquals("f",I.next().node);
+		assertTrue(I.next().isList());
+		assertTrue(I.hasNext());
+		assertEquals("it's",I.next().node);
+		assertFalse(I.hasNext());
+		assertEquals(4,oobr.getTermList().length);
+		InitiallyFlatTermModel.TermListIterator partial = oobr.iterateTermList();
+		assertEquals("a",partial.next().node);
+		partial.close();
+		assertFalse(partial.hasNext());
+		partial.close();
+    }
+    public void testTermStream(){
+		TermStream ts = engine.termStream("f(X)", "buildIntList(500,L), member(X,L)", null, null, 4);
+		int n = 0;
+		while(ts.hasNext()){
+			TermModel T = ts.next();
+			assertEquals("f",T.node);
+			assertEquals(500-n,((TermModel)T.getChild(0)).intValue());
+			n++;
+		}
+		assertEquals(500,n);
+		ts = engine.termStream("g(X,Y)", "member(X,[a,b,c,d,e,f])");
+		assertEquals(3,ts.stream().limit(3).count());
+		ts.close();
+		assertTrue(engine.deterministicGoal("true"));
+    }
     public void testUndefined(){
     	assertTrue(engine.deterministicGoal("true") && !engine.lastSolutionUndefined());
 		SolutionIterator si = engine.goal("win(X),buildTermModel(X,TM)","[TM]"); 
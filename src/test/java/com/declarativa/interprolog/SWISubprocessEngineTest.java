@@ -53,5 +53,16 @@ public class SWISubprocessEngineTest extends SubprocessEngineTest {
 		assertEquals("Second result",bindings[0],objects[1]);
 		assertEquals("Third result",bindings[1],objects[2]);
 	}
+	public void testTermCodecStrings(){
+		engine.setTermTransport(AbstractPrologEngine.TERMS_AS_CODEC);
+		try{
+			TermModel[] terms = engine.deterministicGoalTerms("string_concat(ab,cd,S), X = f(S)","[S,X]");
+			assertEquals("abcd",terms[0].node);
+			assertTrue(terms[0].isLeaf());
+			assertEquals("abcd",((TermModel)terms[1].getChild(0)).node);
+		} finally {
+			engine.setTermTransport(AbstractPrologEngine.TERMS_AS_OBJECTS);
+		}
+	}
 
 }
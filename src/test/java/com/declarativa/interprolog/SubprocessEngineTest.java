@@ -52,6 +52,74 @@ public abstract class SubprocessEngineTest extends PrologEngineTest {
 		for (int i=0;i<engines.length;i++) 
 			engines[i].shutdown();
 	}
+	public void testEnginePool(){
+		EnginePool pool = new EnginePool(new EnginePool.EngineFactory(){
+			public SubprocessEngine newEngine(){
+				return (SubprocessEngine)buildNewEngine();
+			}
+		}, 2, new String[]{"tests.P"}, AbstractPrologEngine.class);
+		SubprocessEngine E1 = pool.checkout();
+		SubprocessEngine E2 = pool.checkout();
+		assertTrue(E1!=E2);
+		assertEquals(2,pool.getLeasedCount());
+		assertNull(pool.checkout(100));
+		assertTrue(E1.deterministicGoal("javaMessage(string(hello),string(hello),toString)"));
+		pool.checkin(E1);
+		assertTrue(E1==pool.checkout());
+		E2.shutdown();
+		pool.checkin(E2);
+		SubprocessEngine E3 = pool.checkout(); // waits for replacement
+		assertTrue(E3!=E2 && E3.isAvailable());
+		pool.checkin(E1); pool.checkin(E3);
+		E1.shutdown(); // while idle in the pool
+		SubprocessEngine E4 = pool.checkout(), E5 = pool.checkout(); // E1 is replaced on checkout
+		assertTrue(E4!=E1 && E5!=E1 && E4.isAvailable() && E5.isAvailable());
+		pool.checkin(E4); pool.checkin(E5);
+		pool.shutdown();
+	}
+	public void testEnginePoolLaunchFailure(){
+		final IPException problem = new IPException("no Prolog here");
+		final int[] launches = {0};
+		EnginePool pool = new EnginePool(new EnginePool.EngineFactory(){
+			public SubprocessEngine newEngine(){
+				synchronized(launches){ launches[0]++; }
+				throw problem;
+			}
+		}, 2);
+		pool.setMaxLaunchAttempts(2);
+		try{
+			pool.checkout();
+			fail("should stop waiting for engines");
+		} catch (IPException e){
+			assertSame(problem,e.getCause());
+		}
+		try{
+			pool.checkout(100);
+			fail("should stop waiting for engines");
+		} catch (IPException e){
+			assertSame(problem,e.getCause());
+		}
+		int L = launches[0];
+		try{Thread.sleep(2500);} catch(InterruptedException e){fail(e.toString());}
+		assertTrue("keeps retrying",launches[0]>L);
+		pool.shutdown();
+		L = launches[0];
+		try{Thread.sleep(4500);} catch(InterruptedException e){fail(e.toString());}
+		assertEquals("no retries after shutdown",L,launches[0]);
+	}
+	public void testSessionStreams(){
+		SubprocessEngine E = (SubprocessEngine)engine;
+		E.startSessionStreams();
+		assertTrue(E.isUsingSessionStreams());
+		// enough messages for both sides to reset their streams a few times
+		for (int i=0;i<1000;i++){
+			Object[] bindings = E.deterministicGoal("javaMessage(string(hello),R,concat(string(' "+i+"'))), ipObjectSpec('java.lang.Integer',I,["+i+"],_)","[R,I]");
+			assertEquals("hello "+i,bindings[0]);
+			assertEquals(new Integer(i),bindings[1]);
+		}
+		TermModel list = (TermModel)E.deterministicGoal("length(L,300), buildTermModel(L,TM)","[TM]")[0];
+		assertEquals(300,list.flatList().length);
+	}
 	StringBuffer buffer;
 	public void testOutputListening(){
 		buffer = new StringBuffer();